@@ -0,0 +1,160 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+
+import org.apache.activemq.advisory.AdvisorySupport;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.command.DataStructure;
+import org.apache.activemq.command.DestinationInfo;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps a running estimate of the queue depth from the broker's advisory
+ * topics and wakes up anyone waiting on a change.  Delivered and consumed
+ * advisories move the estimate, producer and consumer advisories only signal a
+ * change.  The estimate drifts if advisories are lost, so it is meant to be
+ * reconciled periodically against a {@link QueueDepthProbe}.
+ * <p>
+ * The delivered and consumed advisories are only published when the broker's
+ * policy entry for the queue sets <code>advisoryForDelivery</code> and
+ * <code>advisoryForConsumed</code>.
+ */
+@Slf4j
+public class AdvisoryDepthMonitor implements MessageListener {
+
+  private final Connection connection;
+  private final ActiveMQQueue destination;
+  private final AtomicLong estimate = new AtomicLong();
+  private final Object signal = new Object();
+
+  // A capped probe only says the queue holds at least this many
+  private volatile long floor = 0;
+  private boolean changed = false;
+  private Session session;
+
+  public AdvisoryDepthMonitor(Connection connection, String transportName) {
+    this.connection = connection;
+    this.destination = new ActiveMQQueue(transportName);
+  }
+
+  public void start() throws JMSException {
+    session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    subscribe(AdvisorySupport.QUEUE_ADVISORY_TOPIC);
+    subscribe(AdvisorySupport.getProducerAdvisoryTopic(destination));
+    subscribe(AdvisorySupport.getConsumerAdvisoryTopic(destination));
+    subscribe(AdvisorySupport.getMessageDeliveredAdvisoryTopic(destination));
+    subscribe(AdvisorySupport.getMessageConsumedAdvisoryTopic(destination));
+    log.info("Listening for advisories on {}", destination.getPhysicalName());
+  }
+
+  public void close() {
+    try {
+      if (session != null) {
+        session.close();
+      }
+    } catch (JMSException e) {
+      log.debug("Error closing advisory session", e);
+    }
+    session = null;
+  }
+
+  public long getEstimate() {
+    return estimate.get();
+  }
+
+  public void reconcile(long measured) {
+    reconcile(measured, false);
+  }
+
+  /**
+   * Resets the estimate to a probed depth.  A depth that is only a lower
+   * bound is not lowered by consumed advisories until the next reconcile,
+   * since the messages beyond the cap were never counted.
+   */
+  public void reconcile(long measured, boolean lowerBound) {
+    floor = lowerBound ? measured : 0;
+    estimate.set(measured);
+  }
+
+  /**
+   * Blocks until an advisory changed the estimate or the timeout elapsed.
+   *
+   * @return true if a change was seen
+   */
+  public boolean awaitChange(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    synchronized (signal) {
+      long remaining = timeoutMillis;
+      while (!changed && remaining > 0) {
+        signal.wait(remaining);
+        remaining = deadline - System.currentTimeMillis();
+      }
+      boolean result = changed;
+      changed = false;
+      return result;
+    }
+  }
+
+  @Override
+  public void onMessage(Message message) {
+    if (!(message instanceof ActiveMQMessage)) {
+      return;
+    }
+    ActiveMQMessage advisory = (ActiveMQMessage) message;
+    ActiveMQDestination topic = advisory.getDestination();
+
+    if (AdvisorySupport.isMessageDeliveredAdvisoryTopic(topic)) {
+      estimate.incrementAndGet();
+    } else if (AdvisorySupport.isMessageConsumedAdvisoryTopic(topic)) {
+      long min = floor;
+      estimate.updateAndGet(v -> v > min ? v - 1 : Math.max(v, min));
+    } else if (AdvisorySupport.isDestinationAdvisoryTopic(topic)) {
+      DataStructure data = advisory.getDataStructure();
+      if (!(data instanceof DestinationInfo) || !destination.equals(((DestinationInfo) data).getDestination())) {
+        return;
+      }
+      if (((DestinationInfo) data).isRemoveOperation()) {
+        log.info("Queue {} was removed from the broker", destination.getPhysicalName());
+        floor = 0;
+        estimate.set(0);
+      }
+    }
+
+    synchronized (signal) {
+      changed = true;
+      signal.notifyAll();
+    }
+  }
+
+  private void subscribe(ActiveMQTopic topic) throws JMSException {
+    session.createConsumer(topic)
+           .setMessageListener(this);
+  }
+}
@@ -0,0 +1,73 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+import javax.jms.Message;
+
+import edu.psu.activemq.exception.UnableToProcessMessageException;
+import edu.psu.activemq.util.PropertyUtil;
+
+/**
+ * A {@link MessageProcessor} for handlers built on non-blocking clients.
+ * {@link #handleMessageAsync(Message)} returns as soon as the work is
+ * started, and the message is acknowledged when the returned stage
+ * completes.  Up to <code>asyncWindow</code> messages are in flight at once
+ * without a thread each.
+ */
+public abstract class AsyncMessageProcessor extends MessageProcessor {
+
+  public static final String ASYNC_WINDOW_PROP_NAME = "processor.async.window";
+
+  public AsyncMessageProcessor() {
+    super();
+
+    asyncWindow = 100;
+    String asyncWindowString = PropertyUtil.getProperty(ASYNC_WINDOW_PROP_NAME);
+    if (asyncWindowString != null && !asyncWindowString.isEmpty()) {
+      asyncWindow = Integer.parseInt(asyncWindowString);
+    }
+  }
+
+  @Override
+  protected abstract CompletionStage<Void> handleMessageAsync(Message message);
+
+  /**
+   * Waits for the asynchronous handling, used when messages are handled one
+   * at a time.
+   */
+  @Override
+  protected void handleMessage(Message message) throws UnableToProcessMessageException {
+    await(handleMessageAsync(message));
+  }
+
+  static void await(CompletionStage<Void> stage) throws UnableToProcessMessageException {
+    try {
+      stage.toCompletableFuture()
+           .join();
+    } catch (CompletionException e) {
+      Exception cause = unwrap(e);
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new UnableToProcessMessageException(cause.getMessage(), cause);
+    }
+  }
+}
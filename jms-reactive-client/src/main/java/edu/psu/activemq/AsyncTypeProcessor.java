@@ -0,0 +1,43 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.concurrent.CompletionStage;
+
+import edu.psu.activemq.exception.TypeProcessorException;
+
+/**
+ * A {@link TypeProcessor} that handles its type without blocking, see
+ * {@link AsyncMessageProcessor}.
+ */
+public interface AsyncTypeProcessor<T> {
+
+  T parseMessage(String json) throws TypeProcessorException;
+
+  /**
+   * @return completed when the message is handled, failed with an
+   *         {@link edu.psu.activemq.exception.UnableToProcessMessageException}
+   *         to retry it
+   */
+  CompletionStage<Void> processMessage(T t);
+
+  default void cleanUp() {
+    //Default implementation so it is not required to implement 
+  }
+
+}
@@ -0,0 +1,96 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import edu.psu.activemq.exception.UnableToProcessMessageException;
+import edu.psu.activemq.exception.UnableToProcessMessageException.RetryStyle;
+import lombok.Getter;
+
+/**
+ * Waits the exception's retry wait, multiplied by its back off multiplier for
+ * every earlier retry when the style is exponential.  Jitter spreads out
+ * messages that failed together so they do not all come back at once.
+ */
+@Getter
+public class BackoffRetryPolicy implements RetryPolicy {
+
+  public enum Jitter {
+    // The computed wait exactly
+    NONE,
+    // Anywhere between 0 and the computed wait
+    FULL,
+    // Anywhere between the retry wait and three times the previous wait,
+    // regardless of the retry style
+    DECORRELATED
+  }
+
+  Jitter jitter = Jitter.NONE;
+
+  // Longest wait in milliseconds, 0 is uncapped
+  long maxDelay = 0;
+
+  // Milliseconds after the first attempt to stop retrying, 0 retries until
+  // the retry count runs out
+  long deadline = 0;
+
+  public BackoffRetryPolicy setJitter(Jitter jitter) {
+    this.jitter = jitter;
+    return this;
+  }
+
+  public BackoffRetryPolicy setMaxDelay(long maxDelay) {
+    this.maxDelay = maxDelay;
+    return this;
+  }
+
+  public BackoffRetryPolicy setDeadline(long deadline) {
+    this.deadline = deadline;
+    return this;
+  }
+
+  @Override
+  public long retryWait(int retryCount, long previousWait, long elapsed, UnableToProcessMessageException upme) {
+    if (deadline > 0 && elapsed >= deadline) {
+      return -1;
+    }
+
+    double base = upme.getRetryWait();
+    double wait = base;
+    if (RetryStyle.EXPONENTIAL.equals(upme.getRetryStyle())) {
+      wait = base * Math.pow(upme.getBackOffMultiplier(), retryCount - 1);
+    }
+
+    if (Jitter.FULL.equals(jitter)) {
+      wait = ThreadLocalRandom.current()
+                              .nextDouble() * wait;
+    } else if (Jitter.DECORRELATED.equals(jitter)) {
+      wait = base + ThreadLocalRandom.current()
+                                     .nextDouble() * Math.max(0, previousWait * 3 - base);
+    }
+
+    if (maxDelay > 0) {
+      wait = Math.min(wait, maxDelay);
+    }
+    if (deadline > 0) {
+      wait = Math.min(wait, deadline - elapsed);
+    }
+    return (long) wait;
+  }
+}
@@ -0,0 +1,224 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import edu.psu.activemq.exception.UnableToProcessMessageException;
+import edu.psu.activemq.util.PropertyUtil;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A {@link MessageProcessor} that hands messages to the handler in batches.
+ * Messages are collected until <code>batchSize</code> have arrived or
+ * <code>batchWait</code> milliseconds have passed since the first one, then
+ * passed to {@link #handleBatch(List)} and acknowledged together.
+ * <p>
+ * Failed messages reported in the {@link BatchResult} are retried or routed
+ * to the error destination one by one.  Without an error destination a failed
+ * message is sent back to the queue, and to the dead letter queue after its
+ * redeliveries, while the rest of the batch is acknowledged.
+ * <p>
+ * Batches are always received by polling, the LISTENER consumption mode is
+ * ignored.
+ */
+@Slf4j
+public abstract class BatchMessageProcessor extends MessageProcessor {
+
+  public static final String BATCH_SIZE_PROP_NAME = "processor.batch.size";
+  public static final String BATCH_WAIT_PROP_NAME = "processor.batch.wait";
+
+  @Getter
+  @Setter
+  int batchSize = 100;
+
+  // Milliseconds to wait for a batch to fill
+  @Getter
+  @Setter
+  long batchWait = 1000;
+
+  protected abstract BatchResult handleBatch(List<Message> messages) throws UnableToProcessMessageException;
+
+  public BatchMessageProcessor() {
+    super();
+
+    String batchSizeString = PropertyUtil.getProperty(BATCH_SIZE_PROP_NAME);
+    if (batchSizeString != null && !batchSizeString.isEmpty()) {
+      batchSize = Integer.parseInt(batchSizeString);
+    }
+
+    String batchWaitString = PropertyUtil.getProperty(BATCH_WAIT_PROP_NAME);
+    if (batchWaitString != null && !batchWaitString.isEmpty()) {
+      batchWait = Long.parseLong(batchWaitString);
+    }
+  }
+
+  @Override
+  protected void handleMessage(Message message) throws UnableToProcessMessageException {
+    BatchResult result = handleBatch(Collections.singletonList(message));
+    if (result != null && result.hasFailures()) {
+      Exception e = result.getFailures()
+                          .get(0)
+                          .getException();
+      if (e instanceof RuntimeException) {
+        throw (RuntimeException) e;
+      }
+      throw new UnableToProcessMessageException(e.getMessage(), e);
+    }
+  }
+
+  @Override
+  protected void initialize() {
+    if (ConsumptionMode.LISTENER.equals(consumptionMode)) {
+      log.warn("Batch processors poll for messages, ignoring the LISTENER consumption mode");
+      consumptionMode = ConsumptionMode.POLL;
+    }
+    // A batch is not limited or paused per message
+    if (concurrencyLimiter != null) {
+      log.warn("Batch processors are not limited per message, ignoring the concurrency limit");
+      concurrencyLimiter = null;
+    }
+    if (rateLimiter != null) {
+      log.warn("Batch processors are not limited per message, ignoring the rate limit");
+      rateLimiter = null;
+    }
+    if (breakerThreshold > 0) {
+      log.warn("Batch processors are not paused per message, ignoring the circuit breaker");
+      breakerThreshold = 0;
+    }
+    if (localRetryThreshold > 0) {
+      log.warn("Batch processors send retries to the broker, ignoring the local retry threshold");
+      localRetryThreshold = 0;
+    }
+    if (inFlightLimit() > 1) {
+      log.warn("Batch processors handle one batch at a time, ignoring the concurrency");
+      concurrency = 1;
+      asyncWindow = 0;
+    }
+    super.initialize();
+  }
+
+  @Override
+  protected void receiveMessages() {
+    List<Message> batch = new ArrayList<>(batchSize);
+    try {
+      long deadline = 0;
+      while (process) {
+        long wait = batch.isEmpty() ? 10000 : deadline - System.currentTimeMillis();
+        Message message = wait > 0 ? receive(wait) : consumer.receiveNoWait();
+        if (message != null) {
+          if (batch.isEmpty()) {
+            deadline = System.currentTimeMillis() + batchWait;
+          }
+          batch.add(message);
+        }
+
+        synchronized (dispatchLock) {
+          Thread.interrupted();
+          if (!batch.isEmpty() && (batch.size() >= batchSize || System.currentTimeMillis() >= deadline)) {
+            processBatch(batch);
+            batch = new ArrayList<>(batchSize);
+          } else if (message == null) {
+            commitIfDue();
+          }
+        }
+      }
+      // Finish the messages already taken off the queue
+      Thread.interrupted();
+      if (!batch.isEmpty()) {
+        processBatch(batch);
+      }
+      commitPending();
+      log.info("Stopping processor");
+    } catch (Exception e) {
+      stopped = true;
+      log.error("Processor exception processing batch.", e);
+    }
+  }
+
+  void processBatch(List<Message> messages) throws JMSException, IOException {
+    long started = System.nanoTime();
+    long startedCpu = ProcessorStatistics.currentThreadCpuNanos();
+    try {
+      List<BatchResult.Failure> failures = new ArrayList<>();
+      List<Message> accepted = new ArrayList<>(messages.size());
+      for (Message message : messages) {
+        try {
+          shouldDelayMessage(message);
+          accepted.add(message);
+        } catch (UnableToProcessMessageException upme) {
+          failures.add(new BatchResult.Failure(message, upme));
+        }
+      }
+
+      if (!accepted.isEmpty()) {
+        log.debug("Handling batch of {} messages", accepted.size());
+        try {
+          BatchResult result = handleBatch(accepted);
+          if (result != null) {
+            failures.addAll(result.getFailures());
+          }
+        } catch (Exception e) {
+          // The whole batch failed
+          for (Message message : accepted) {
+            failures.add(new BatchResult.Failure(message, e));
+          }
+        }
+      }
+
+      for (BatchResult.Failure failure : failures) {
+        if (!routeFailure(failure.getMessage(), failure.getException())) {
+          // Acknowledging the batch would lose the message
+          throw new IllegalStateException("Failed message " + failure.getMessage()
+                                                                     .getJMSMessageID() + " was not retried or routed");
+        }
+      }
+      acknowledge(messages.size());
+      log.debug("Acknowledge the batch on the consumer");
+    } finally {
+      long elapsedCpu = startedCpu < 0 ? -1 : ProcessorStatistics.currentThreadCpuNanos() - startedCpu;
+      statistics.recordMessages(messages.size(), System.nanoTime() - started, elapsedCpu);
+    }
+  }
+
+  @Override
+  boolean redeliversFailures() {
+    // A rollback would return the whole batch
+    return true;
+  }
+
+  private boolean routeFailure(Message message, Exception e) throws JMSException, IOException {
+    putMdc(message);
+    try {
+      if (e instanceof UnableToProcessMessageException) {
+        return handleUnableToProcessMessage(message, (UnableToProcessMessageException) e);
+      }
+      return processFailureMessage(message, e);
+    } finally {
+      removeMdc();
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jms.Message;
+
+import lombok.Value;
+
+/**
+ * Returned by {@link BatchMessageProcessor#handleBatch(List)} to report the
+ * messages of a batch that could not be processed.  Every message not marked
+ * as failed is considered handled.
+ */
+public class BatchResult {
+
+  @Value
+  public static class Failure {
+    Message message;
+    Exception exception;
+  }
+
+  private final List<Failure> failures = new ArrayList<>();
+
+  public static BatchResult success() {
+    return new BatchResult();
+  }
+
+  /**
+   * Marks a message as failed.  An {@link edu.psu.activemq.exception.UnableToProcessMessageException}
+   * is retried, dropped or sent to the error destination according to its
+   * action, any other exception sends the message to the error destination.
+   */
+  public BatchResult fail(Message message, Exception exception) {
+    failures.add(new Failure(message, exception));
+    return this;
+  }
+
+  public List<Failure> getFailures() {
+    return Collections.unmodifiableList(failures);
+  }
+
+  public boolean hasFailures() {
+    return !failures.isEmpty();
+  }
+}
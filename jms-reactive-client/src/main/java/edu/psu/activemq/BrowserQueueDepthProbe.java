@@ -0,0 +1,103 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Enumeration;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.Session;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Counts messages by browsing the queue.  The browse stops as soon as the
+ * count reaches the cap, so the cost is bounded by the cap rather than the
+ * size of the backlog.  A depth equal to the cap means "at least the cap".
+ * <p>
+ * Each probe browses with a new browser, since a browser stopped part way
+ * carries on from where it stopped rather than from the head of the queue.
+ */
+@Slf4j
+public class BrowserQueueDepthProbe implements QueueDepthProbe {
+
+  private final Connection connection;
+  private final String transportName;
+  private final int cap;
+  private final String selector;
+
+  private Session session;
+  private Queue destination;
+  private boolean lowerBound = false;
+
+  public BrowserQueueDepthProbe(Connection connection, String transportName, int cap) {
+    this(connection, transportName, null, cap);
+  }
+
+  /**
+   * Counts only the messages matching the selector.
+   */
+  public BrowserQueueDepthProbe(Connection connection, String transportName, String selector, int cap) {
+    this.connection = connection;
+    this.transportName = transportName;
+    this.selector = selector;
+    this.cap = cap;
+  }
+
+  @Override
+  public long getQueueDepth() throws JMSException {
+    if (session == null) {
+      session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      destination = session.createQueue(transportName);
+    }
+
+    QueueBrowser browser = session.createBrowser(destination, selector);
+    try {
+      long count = 0;
+      Enumeration<?> enumeration = browser.getEnumeration();
+      while (count < cap && enumeration.hasMoreElements()) {
+        enumeration.nextElement();
+        count++;
+      }
+      lowerBound = count >= cap;
+      return count;
+    } finally {
+      browser.close();
+    }
+  }
+
+  @Override
+  public boolean isLowerBound() {
+    return lowerBound;
+  }
+
+  @Override
+  public void close() {
+    try {
+      if (session != null) {
+        session.close();
+      }
+    } catch (JMSException e) {
+      log.debug("Error closing browser session", e);
+    }
+    destination = null;
+    session = null;
+  }
+}
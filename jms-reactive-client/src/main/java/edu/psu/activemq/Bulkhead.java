@@ -0,0 +1,177 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Threads and a queue of their own for the messages of one type, so a slow
+ * type cannot hold up the others.  Work is turned away rather than waited
+ * for once both are full.
+ */
+@Slf4j
+public class Bulkhead implements BulkheadMXBean {
+
+  private final int maxConcurrent;
+  private final int maxQueued;
+  private final ThreadPoolExecutor executor;
+
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final CompletableFuture<Void> terminated = new CompletableFuture<>();
+
+  private ObjectName name;
+
+  public Bulkhead(String key, int maxConcurrent, int maxQueued) {
+    if (maxConcurrent < 1 || maxQueued < 0) {
+      throw new IllegalArgumentException("A bulkhead needs at least one thread and a queue of zero or more");
+    }
+    this.maxConcurrent = maxConcurrent;
+    this.maxQueued = maxQueued;
+
+    AtomicInteger threads = new AtomicInteger();
+    BlockingQueue<Runnable> queue = maxQueued > 0 ? new ArrayBlockingQueue<>(maxQueued) : new SynchronousQueue<>();
+    executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 60, TimeUnit.SECONDS, queue, r -> {
+      Thread thread = new Thread(r, "bulkhead-" + key + "-" + threads.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }) {
+      @Override
+      protected void terminated() {
+        super.terminated();
+        terminated.complete(null);
+      }
+    };
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @return completed when the task has run, or null if the bulkhead is full
+   */
+  public CompletableFuture<Void> submit(Runnable task) {
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    try {
+      executor.execute(() -> {
+        Throwable failure = null;
+        try {
+          task.run();
+        } catch (Throwable t) {
+          failure = t;
+        }
+        // Counted before completing, so the count is current for whoever waits
+        completed.incrementAndGet();
+        if (failure == null) {
+          result.complete(null);
+        } else {
+          result.completeExceptionally(failure);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      rejected.incrementAndGet();
+      return null;
+    }
+    return result;
+  }
+
+  /**
+   * @return the most tasks held at once, running or queued
+   */
+  public int getCapacity() {
+    return maxConcurrent + maxQueued;
+  }
+
+  void export(String transportName, String key) {
+    if (name != null) {
+      return;
+    }
+    try {
+      name = new ObjectName("edu.psu.activemq:type=Bulkhead,name=" + ObjectName.quote(transportName) + ",key=" + ObjectName.quote(key) + ",id="
+          + Integer.toHexString(System.identityHashCode(this)));
+      ManagementFactory.getPlatformMBeanServer()
+                       .registerMBean(this, name);
+    } catch (JMException e) {
+      log.warn("Unable to export the bulkhead of type {}", key, e);
+      name = null;
+    }
+  }
+
+  /**
+   * Lets the tasks already taken finish, and takes no more.
+   *
+   * @return completed once the tasks already taken have finished
+   */
+  public CompletableFuture<Void> shutdown() {
+    executor.shutdown();
+    if (name == null) {
+      return terminated;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer()
+                       .unregisterMBean(name);
+    } catch (JMException e) {
+      log.warn("Unable to remove the bulkhead {}", name, e);
+    }
+    name = null;
+    return terminated;
+  }
+
+  @Override
+  public int getMaxConcurrent() {
+    return maxConcurrent;
+  }
+
+  @Override
+  public int getMaxQueued() {
+    return maxQueued;
+  }
+
+  @Override
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  @Override
+  public int getQueuedCount() {
+    return executor.getQueue()
+                   .size();
+  }
+
+  @Override
+  public long getCompletedCount() {
+    return completed.get();
+  }
+
+  @Override
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+}
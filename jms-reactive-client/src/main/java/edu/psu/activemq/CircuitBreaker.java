@@ -0,0 +1,101 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Stops a consumer after <code>threshold</code> messages in a row are sent
+ * back for a retry, so that while a dependency is down messages wait on the
+ * queue instead of in the broker's scheduler.  Once <code>cooldown</code>
+ * milliseconds have passed a single probe message is let through; the breaker
+ * closes if it is handled and opens again if it is retried.
+ */
+public class CircuitBreaker {
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final int threshold;
+  private final long cooldown;
+
+  private State state = State.CLOSED;
+  private int consecutiveRetries = 0;
+  private long openedAt = 0;
+  private boolean probing = false;
+
+  public CircuitBreaker(int threshold, long cooldown) {
+    this.threshold = threshold;
+    this.cooldown = cooldown;
+  }
+
+  /**
+   * @return true if a message may be taken, it must then be followed by
+   *         {@link #recordSuccess()}, {@link #recordRetry()} or
+   *         {@link #release()}
+   */
+  public synchronized boolean tryAcquire() {
+    if (State.OPEN.equals(state)) {
+      if (System.currentTimeMillis() - openedAt < cooldown) {
+        return false;
+      }
+      state = State.HALF_OPEN;
+    }
+    if (State.HALF_OPEN.equals(state)) {
+      if (probing) {
+        return false;
+      }
+      probing = true;
+    }
+    return true;
+  }
+
+  /**
+   * Gives back a probe that was not used for a message.
+   */
+  public synchronized void release() {
+    probing = false;
+  }
+
+  public synchronized void recordSuccess() {
+    state = State.CLOSED;
+    consecutiveRetries = 0;
+    probing = false;
+  }
+
+  public synchronized void recordRetry() {
+    if (State.HALF_OPEN.equals(state) || (State.CLOSED.equals(state) && ++consecutiveRetries >= threshold)) {
+      state = State.OPEN;
+      openedAt = System.currentTimeMillis();
+      probing = false;
+    }
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * @return milliseconds until a probe is let through, 0 unless open
+   */
+  public synchronized long getRemainingMillis() {
+    if (!State.OPEN.equals(state)) {
+      return 0;
+    }
+    return Math.max(0, cooldown - (System.currentTimeMillis() - openedAt));
+  }
+}
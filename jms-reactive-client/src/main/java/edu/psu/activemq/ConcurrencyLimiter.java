@@ -0,0 +1,142 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Limits how many messages the processors of a handler work on at once, and
+ * adapts the limit to what the downstream services can take (additive
+ * increase, multiplicative decrease).
+ * <p>
+ * While handler latency stays near its baseline the limit grows by about one
+ * per limit's worth of messages.  When a message takes longer than
+ * <code>tolerance</code> times the baseline, or is sent back for a retry, the
+ * limit is cut by <code>backoff</code>, at most once per latency period so a
+ * burst of slow messages counts as one signal.
+ */
+public class ConcurrencyLimiter implements ConcurrencyLimiterMXBean {
+
+  private final int minLimit;
+  private final int maxLimit;
+
+  @Getter
+  @Setter
+  double backoff = 0.9;
+
+  @Getter
+  @Setter
+  double tolerance = 2.0;
+
+  // Weight of a sample in the baseline latency
+  @Getter
+  @Setter
+  double smoothing = 0.05;
+
+  private double limit;
+  private int inFlight = 0;
+  private double baselineNanos = -1;
+  private long lastDecrease = 0;
+  private long droppedCount = 0;
+
+  public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.limit = Math.max(minLimit, Math.min(initialLimit, maxLimit));
+  }
+
+  public synchronized boolean tryAcquire() {
+    if (inFlight >= (int) limit) {
+      return false;
+    }
+    inFlight++;
+    return true;
+  }
+
+  public synchronized boolean acquire(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (inFlight >= (int) limit) {
+      long wait = deadline - System.currentTimeMillis();
+      if (wait <= 0) {
+        return false;
+      }
+      wait(wait);
+    }
+    inFlight++;
+    return true;
+  }
+
+  /**
+   * Returns a permit that was not used for a message.
+   */
+  public synchronized void release() {
+    inFlight--;
+    notifyAll();
+  }
+
+  /**
+   * Returns a permit and adjusts the limit from the message's outcome.
+   *
+   * @param dropped true if the message could not be handled for lack of
+   *          downstream capacity, e.g. it was sent back for a retry
+   */
+  public synchronized void release(long latencyNanos, boolean dropped) {
+    boolean saturated = inFlight >= (int) limit;
+    inFlight--;
+
+    long now = System.nanoTime();
+    boolean slow = baselineNanos > 0 && latencyNanos > baselineNanos * tolerance;
+    if (dropped || slow) {
+      if (dropped) {
+        droppedCount++;
+      }
+      if (now - lastDecrease > Math.max(latencyNanos, baselineNanos)) {
+        limit = Math.max(minLimit, limit * backoff);
+        lastDecrease = now;
+      }
+    } else if (saturated) {
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+
+    if (!dropped) {
+      baselineNanos = baselineNanos < 0 ? latencyNanos : (1 - smoothing) * baselineNanos + smoothing * latencyNanos;
+    }
+    notifyAll();
+  }
+
+  @Override
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  @Override
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  @Override
+  public synchronized double getBaselineLatencyMillis() {
+    return baselineNanos < 0 ? 0 : baselineNanos / 1e6;
+  }
+
+  @Override
+  public synchronized long getDroppedCount() {
+    return droppedCount;
+  }
+}
@@ -0,0 +1,28 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * How a {@link MessageProcessor} takes messages off the queue.  POLL calls
+ * receive on a thread owned by the processor.  LISTENER registers a message
+ * listener, so messages are handed over by the session's dispatch thread
+ * without a receive timeout.
+ */
+public enum ConsumptionMode {
+  POLL, LISTENER
+}
@@ -0,0 +1,283 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import edu.psu.activemq.exception.TypeProcessorException;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The delegates of a {@link TypeDelegatingMessageProcessor} by processor key.
+ * Lookups read an immutable snapshot without locking, while changes copy the
+ * snapshot and swap the copy in, so delegates can be added, replaced and
+ * removed as messages are handled.  A replaced or removed delegate is cleaned
+ * up once the messages already in its bulkhead have finished.
+ *
+ * When a {@link MessageHandler} shares one registry with all its processors,
+ * the delegates are called from every processor at once.
+ */
+@Slf4j
+public class DelegateRegistry {
+
+  private volatile Map<String, MapValue<? extends Object>> delegates = Collections.emptyMap();
+
+  // Set once a delegate binds with an ObjectReader
+  private volatile boolean bindsParsedPayload = false;
+
+  private boolean populated = false;
+
+  // Applied to every delegate, including those registered later
+  private String transportName;
+  private int breakerThreshold = 0;
+  private long breakerCooldown = 30000;
+
+  public <T> void register(String key, Function<String, T> function, Consumer<T> consumer) {
+    MapValue<T> mapValue = new MapValue<>();
+    mapValue.setConvertFunction(function);
+    mapValue.setProcessorConsumer(consumer);
+    put(key, mapValue);
+  }
+
+  public <T> void register(String key, TypeProcessor<T> delegate) {
+    put(key, processor(delegate));
+  }
+
+  public <T> void register(String key, TypeProcessor<T> delegate, TypeOptions options) {
+    put(key, withOptions(key, processor(delegate), options));
+  }
+
+  public <T> void register(String key, ObjectReader reader, TypeProcessor<T> delegate) {
+    put(key, processor(reader, delegate));
+  }
+
+  public <T> void register(String key, ObjectReader reader, TypeProcessor<T> delegate, TypeOptions options) {
+    put(key, withOptions(key, processor(reader, delegate), options));
+  }
+
+  public <T> void registerAsync(String key, AsyncTypeProcessor<T> delegate) {
+    MapValue<T> mapValue = new MapValue<>();
+    mapValue.setConvertFunction(delegate::parseMessage);
+    mapValue.setAsyncProcessor(delegate::processMessage);
+    mapValue.setCleanUp(delegate::cleanUp);
+    put(key, mapValue);
+  }
+
+  public <T> void registerAsync(String key, ObjectReader reader, AsyncTypeProcessor<T> delegate) {
+    MapValue<T> mapValue = new MapValue<>();
+    mapValue.setConvertFunction(json -> read(reader, json));
+    mapValue.setBindFunction(tokens -> read(reader, tokens));
+    mapValue.setAsyncProcessor(delegate::processMessage);
+    mapValue.setCleanUp(delegate::cleanUp);
+    put(key, mapValue);
+  }
+
+  /**
+   * Removes and cleans up the delegate of the key.  Its messages then fail
+   * as having no processor mapped.
+   *
+   * @return true if the key had a delegate
+   */
+  public synchronized boolean remove(String key) {
+    if (!delegates.containsKey(key)) {
+      return false;
+    }
+    Map<String, MapValue<? extends Object>> next = new HashMap<>(delegates);
+    MapValue<? extends Object> removed = next.remove(key);
+    delegates = Collections.unmodifiableMap(next);
+    log.info("Removed the delegate of type {}", key);
+    cleanUp(key, removed);
+    return true;
+  }
+
+  public Set<String> getKeys() {
+    return new TreeSet<>(delegates.keySet());
+  }
+
+  /**
+   * Cleans up and removes every delegate.
+   */
+  public synchronized void cleanUp() {
+    Map<String, MapValue<? extends Object>> removed = delegates;
+    delegates = Collections.emptyMap();
+    populated = false;
+    removed.forEach(this::cleanUp);
+  }
+
+  MapValue<? extends Object> get(String key) {
+    return delegates.get(key);
+  }
+
+  boolean bindsParsedPayload() {
+    return bindsParsedPayload;
+  }
+
+  /**
+   * Runs the registration unless an earlier one filled the registry, so
+   * processors sharing it create their delegates only once.
+   */
+  synchronized void populate(Runnable registration) {
+    if (!populated) {
+      registration.run();
+      populated = true;
+    }
+  }
+
+  /**
+   * Gives each type a breaker and exports the bulkheads, now and for the
+   * delegates registered later.
+   */
+  synchronized void configure(String transportName, int breakerThreshold, long breakerCooldown) {
+    this.transportName = transportName;
+    this.breakerThreshold = breakerThreshold;
+    this.breakerCooldown = breakerCooldown;
+    delegates.forEach(this::prepare);
+  }
+
+  /**
+   * @return the most messages the bulkheads hold at once
+   */
+  int getBulkheadCapacity() {
+    return delegates.values()
+                    .stream()
+                    .filter(v -> v.getBulkhead() != null)
+                    .mapToInt(v -> v.getBulkhead()
+                                    .getCapacity())
+                    .sum();
+  }
+
+  private synchronized void put(String key, MapValue<? extends Object> mapValue) {
+    prepare(key, mapValue);
+    Map<String, MapValue<? extends Object>> next = new HashMap<>(delegates);
+    MapValue<? extends Object> replaced = next.put(key, mapValue);
+    if (mapValue.getBindFunction() != null) {
+      bindsParsedPayload = true;
+    }
+    delegates = Collections.unmodifiableMap(next);
+    if (replaced != null) {
+      log.info("Replaced the delegate of type {}", key);
+      cleanUp(key, replaced);
+    }
+  }
+
+  private void prepare(String key, MapValue<? extends Object> mapValue) {
+    // Each type gets its own breaker, so one failing dependency does not hold
+    // up the types that do not need it
+    if (breakerThreshold > 0 && mapValue.getCircuitBreaker() == null) {
+      mapValue.setCircuitBreaker(new CircuitBreaker(breakerThreshold, breakerCooldown));
+    }
+    if (transportName != null && mapValue.getBulkhead() != null) {
+      mapValue.getBulkhead()
+              .export(transportName, key);
+    }
+  }
+
+  private void cleanUp(String key, MapValue<? extends Object> mapValue) {
+    if (mapValue.getBulkhead() == null) {
+      runCleanUp(key, mapValue);
+      return;
+    }
+    // The messages already in the bulkhead still need the delegate
+    mapValue.getBulkhead()
+            .shutdown()
+            .thenRun(() -> runCleanUp(key, mapValue));
+  }
+
+  private static void runCleanUp(String key, MapValue<? extends Object> mapValue) {
+    log.debug("Calling clean up for Key: {}", key);
+    if (mapValue.getCleanUp() == null) {
+      return;
+    }
+    try {
+      mapValue.getCleanUp()
+              .cleanUp();
+    } catch (RuntimeException e) {
+      log.warn("Error cleaning up the delegate of type {}", key, e);
+    }
+  }
+
+  private static <T> MapValue<T> processor(TypeProcessor<T> delegate) {
+    MapValue<T> mapValue = new MapValue<>();
+    mapValue.setConvertFunction(delegate::parseMessage);
+    mapValue.setProcessorConsumer(delegate::processMessage);
+    mapValue.setCleanUp(delegate::cleanUp);
+    return mapValue;
+  }
+
+  /*
+   * Binds with the reader, e.g. mapper.readerFor(Order.class), instead of
+   * parseMessage, so a payload read once for its type is not read again.
+   */
+  private static <T> MapValue<T> processor(ObjectReader reader, TypeProcessor<T> delegate) {
+    MapValue<T> mapValue = new MapValue<>();
+    mapValue.setConvertFunction(json -> read(reader, json));
+    mapValue.setBindFunction(tokens -> read(reader, tokens));
+    mapValue.setProcessorConsumer(delegate::processMessage);
+    mapValue.setCleanUp(delegate::cleanUp);
+    return mapValue;
+  }
+
+  private static <T> MapValue<T> withOptions(String key, MapValue<T> mapValue, TypeOptions options) {
+    mapValue.setBulkhead(new Bulkhead(key, options.getMaxConcurrent(), options.getMaxQueued()));
+    mapValue.setSaturatedRetryWait(options.getSaturatedRetryWait());
+    return mapValue;
+  }
+
+  private static <T> T read(ObjectReader reader, String json) {
+    try {
+      return reader.readValue(json);
+    } catch (IOException e) {
+      throw new TypeProcessorException(e);
+    }
+  }
+
+  private static <T> T read(ObjectReader reader, JsonParser tokens) {
+    try {
+      return reader.readValue(tokens);
+    } catch (IOException e) {
+      throw new TypeProcessorException(e);
+    }
+  }
+
+  @Data
+  static class MapValue<T> {
+    Function<String, T> convertFunction;
+    // Binds from the tokens of an already read payload, null if the delegate
+    // only takes the text
+    Function<JsonParser, T> bindFunction;
+    Consumer<T> processorConsumer;
+    Function<T, CompletionStage<Void>> asyncProcessor;
+    Cleanup cleanUp;
+    CircuitBreaker circuitBreaker;
+    // Runs the processor consumer off the receiving thread, null runs it in line
+    Bulkhead bulkhead;
+    int saturatedRetryWait;
+  }
+}
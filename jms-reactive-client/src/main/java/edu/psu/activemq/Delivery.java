@@ -0,0 +1,78 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jms.Message;
+
+import edu.psu.activemq.exception.UnableToProcessMessageException;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * A message handed to a subscriber of a {@link MessagePublisher}.  The
+ * subscriber settles every delivery exactly once, from any thread, with
+ * {@link #ack()}, {@link #retry(UnableToProcessMessageException)} or
+ * {@link #fail(Throwable)}.  Deliveries left unsettled when the publisher
+ * stops are redelivered by the broker.
+ */
+@Getter
+public class Delivery<T> {
+
+  private final Message message;
+  private final T payload;
+
+  @Getter(value = AccessLevel.NONE)
+  private final MessagePublisher<T> publisher;
+
+  @Getter(value = AccessLevel.NONE)
+  private final AtomicBoolean settled = new AtomicBoolean();
+
+  Delivery(Message message, T payload, MessagePublisher<T> publisher) {
+    this.message = message;
+    this.payload = payload;
+    this.publisher = publisher;
+  }
+
+  public void ack() {
+    settle(null);
+  }
+
+  /**
+   * Retries, drops or routes the message to the error destination, as the
+   * exception's action says.
+   */
+  public void retry(UnableToProcessMessageException upme) {
+    settle(upme);
+  }
+
+  /**
+   * Routes the message to the error destination.
+   */
+  public void fail(Throwable cause) {
+    settle(cause instanceof Exception ? (Exception) cause : new RuntimeException(cause));
+  }
+
+  private void settle(Exception failure) {
+    if (!settled.compareAndSet(false, true)) {
+      throw new IllegalStateException("Delivery already settled");
+    }
+    publisher.settleLater(message, failure);
+  }
+}
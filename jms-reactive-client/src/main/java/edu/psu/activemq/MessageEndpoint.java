@@ -0,0 +1,866 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.AnnotationIntrospector;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.introspect.AnnotationIntrospectorPair;
+import com.fasterxml.jackson.databind.introspect.JacksonAnnotationIntrospector;
+import com.fasterxml.jackson.module.jaxb.JaxbAnnotationIntrospector;
+
+import org.apache.activemq.ActiveMQConnection;
+import org.apache.activemq.ActiveMQMessageConsumer;
+import org.apache.activemq.ActiveMQMessageProducer;
+import org.apache.activemq.ActiveMQSession;
+import org.apache.activemq.RedeliveryPolicy;
+import org.apache.activemq.ScheduledMessage;
+import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.slf4j.MDC;
+
+import edu.psu.activemq.data.ErrorMessage;
+import edu.psu.activemq.exception.CircuitOpenException;
+import edu.psu.activemq.exception.UnableToProcessMessageException;
+import lombok.AccessLevel;
+import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The session side of consuming a queue, shared by {@link MessageProcessor}
+ * and {@link MessagePublisher}.  It opens the sessions, receives on a thread
+ * of its own and settles every message: acknowledges it, retries it, or
+ * routes it to the error or dead letter destination.
+ */
+@Slf4j
+@Data
+public abstract class MessageEndpoint {
+
+  public static final String AMQ_JOB_ID_PROP_NAME = "scheduledJobId";
+  public static final String DELIVERY_COUNT_PROP_NAME = "swe-delivery-count";
+  public static final String RETRY_WAIT_PROP_NAME = "swe-retry-wait";
+  public static final String FIRST_ATTEMPT_PROP_NAME = "swe-first-attempt";
+  public static final String RETRY_DUE_PROP_NAME = "swe-retry-due";
+  public static final String REDELIVERY_COUNT_PROP_NAME = "swe-redelivery-count";
+  public static final String UNIQUE_ID_MDC_KEY = "uniqueId";
+  public static final String CORRELATION_ID_MDC_KEY = "correlationId";
+
+  // Milliseconds between receives while concurrent handlers are running
+  static final long CONCURRENT_POLL_INTERVAL = 10;
+
+  // States of the receiver, see enterWait()
+  static final int BUSY = 0;
+  static final int WAITING = 1;
+  static final int WAKING = 2;
+  static final int WOKEN = 3;
+
+  // Redeliveries of a failed message before it is dead-lettered
+  static final int MAX_REDELIVERIES = 2;
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  volatile boolean process = true;
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  volatile boolean stopped = false;
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  final Object dispatchLock = new Object();
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  final AtomicBoolean draining = new AtomicBoolean();
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  Thread receiver = null;
+
+  // Whether drain() may interrupt the receiver
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  final AtomicInteger receiverState = new AtomicInteger(BUSY);
+
+  // Completed once the processor has stopped and released its sessions
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  final CompletableFuture<Void> drained = new CompletableFuture<>();
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  ActiveMQConnection connection = null;
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  Session session = null;
+
+  String brokerUrl = null;
+  String transportName = null;
+  String errorTransportName = null;
+  TransportType errorTransportType = null;
+  String username;
+  String password;
+  int requestRetryThreshold;
+  boolean errorMessageConvert = false;
+
+  ActiveMQMessageConsumer consumer = null;
+  ActiveMQMessageProducer producer = null;
+  // Sends to the retry tier queues
+  MessageProducer tierProducer = null;
+  MessageProducer errorProducer = null;
+  Session errorSession;
+  // Where failed messages end up without an error destination
+  String deadLetterQueueName = "ActiveMQ.DLQ";
+  MessageProducer deadLetterProducer = null;
+
+  ObjectMapper objectMapper = new ObjectMapper();
+
+  // When set, sessions are created on a connection shared with the other
+  // processors of the handler instead of a connection of our own
+  SharedConnectionPool connectionPool = null;
+
+  // Consume, re-send and acknowledge in one local transaction, committed
+  // every commitSize messages or commitInterval milliseconds
+  boolean transacted = false;
+  int commitSize = 100;
+  long commitInterval = 1000;
+
+  // Consumer prefetch, 0 leaves it to the broker
+  int prefetch = 0;
+
+  // JMS message selector of the consumer, null takes every message
+  String selector = null;
+
+  // Used for retries that do not name a policy, null uses the default policy
+  RetryPolicy retryPolicy = null;
+
+  // Retry tier queues used instead of the broker's scheduler, null uses the
+  // scheduler
+  RetryTiers retryTiers = null;
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  int inFlight = 0;
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  final BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<>();
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  int uncommitted = 0;
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  long lastCommit = 0;
+
+  public MessageEndpoint() {
+    AnnotationIntrospector jaxbIntrospector = new JaxbAnnotationIntrospector(objectMapper.getTypeFactory());
+    AnnotationIntrospector jacksonIntrospector = new JacksonAnnotationIntrospector();
+    AnnotationIntrospector pair = new AnnotationIntrospectorPair(jacksonIntrospector, jaxbIntrospector);
+    objectMapper.setAnnotationIntrospector(pair);
+  }
+
+  /**
+   * Receives until {@link #drain()}, on the receiver thread, the only one
+   * using the session.
+   */
+  protected abstract void receiveMessages();
+
+  /**
+   * @return true when messages are settled out of order and acknowledged one
+   *         by one
+   */
+  abstract boolean acknowledgesIndividually();
+
+  // A message handled on a worker thread, waiting to be settled
+  @Value
+  static class Outcome {
+    Message message;
+    Exception failure;
+    long elapsedNanos;
+  }
+
+  // Wakes a receive loop waiting for outcomes without settling anything
+  static final Outcome WAKE_UP = new Outcome(null, null, 0);
+
+  public void terminate() {
+    drain();
+  }
+
+  /**
+   * Stops receiving, lets the message in flight finish and closes the
+   * consumer, so the broker hands the prefetched messages to other consumers
+   * straight away.
+   *
+   * @return completed once the processor has released its sessions
+   */
+  public CompletableFuture<Void> drain() {
+    if (!draining.compareAndSet(false, true)) {
+      return drained;
+    }
+    process = false;
+    if (receiver != null) {
+      // Wake the receive loop, it finishes up on its own thread
+      if (receiverState.compareAndSet(WAITING, WAKING)) {
+        receiver.interrupt();
+        receiverState.set(WOKEN);
+      }
+    } else {
+      drainWithoutReceiver();
+    }
+    return drained;
+  }
+
+  // Finishes a drain when no receive loop is running
+  void drainWithoutReceiver() {
+    drained.complete(null);
+  }
+
+  /**
+   * Marks the receiver as waiting, so {@link #drain()} may interrupt it
+   * instead of waiting out the timeout.  Handlers are never interrupted.
+   *
+   * @return false if the processor is draining, the wait is not interrupted
+   *         and {@link #exitWait()} must not be called
+   */
+  boolean enterWait() {
+    receiverState.set(WAITING);
+    if (process) {
+      return true;
+    }
+    exitWait();
+    return false;
+  }
+
+  void exitWait() {
+    if (receiverState.compareAndSet(WAITING, BUSY)) {
+      return;
+    }
+    // drain() is interrupting, take the interrupt before going on
+    while (receiverState.get() == WAKING) {
+      Thread.yield();
+    }
+    Thread.interrupted();
+    receiverState.set(BUSY);
+  }
+
+  /**
+   * Opens the sessions and receives on a thread of its own until drained.
+   */
+  protected void initialize() {
+    receiver = new Thread(new Runnable() {
+      public void run() {
+        try {
+          openSessions();
+          consume();
+        } finally {
+          // Clear a wake up from drain() before talking to the broker
+          Thread.interrupted();
+          closeSessions();
+          drained.complete(null);
+        }
+      }
+    });
+    receiver.start();
+  }
+
+  // The receive loop of the receiver thread
+  void consume() {
+    receiveMessages();
+  }
+
+  void openSessions() {
+    try {
+      if (connectionPool != null) {
+        connection = connectionPool.acquire();
+      } else {
+        connection = (ActiveMQConnection) MessageHandler.buildActivemqConnection(brokerUrl, username, password);
+
+        RedeliveryPolicy rd = new RedeliveryPolicy();
+        rd.setMaximumRedeliveries(MAX_REDELIVERIES);
+        connection.getRedeliveryPolicyMap()
+                  .put(new ActiveMQQueue(transportName), rd);
+
+        connection.start();
+      }
+      if (acknowledgesIndividually()) {
+        session = connection.createSession(false, ActiveMQSession.INDIVIDUAL_ACKNOWLEDGE);
+      } else if (transacted) {
+        session = connection.createSession(true, Session.SESSION_TRANSACTED);
+        lastCommit = System.currentTimeMillis();
+      } else {
+        session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+      }
+
+      Queue destination = session.createQueue(transportName);
+      if (prefetch > 0) {
+        log.info("Consuming with a prefetch of {}", prefetch);
+        consumer = (ActiveMQMessageConsumer) session.createConsumer(session.createQueue(transportName + "?consumer.prefetchSize=" + prefetch), selector);
+      } else {
+        consumer = (ActiveMQMessageConsumer) session.createConsumer(destination, selector);
+      }
+      // Used for re-queuing messages at the users requests
+      producer = (ActiveMQMessageProducer) session.createProducer(destination);
+      if (retryTiers != null) {
+        tierProducer = session.createProducer(null);
+      }
+
+    } catch (JMSException e) {
+      log.info("Error creating message consumer", e);
+      stopped = true;
+      throw new RuntimeException("Failed to initialize processing queue");
+    }
+
+    if (errorTransportName != null) {
+      try {
+        // A transacted processor publishes errors in the same transaction
+        errorSession = session.getTransacted() ? session : connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+
+        Destination errorDestination = null;
+        if (TransportType.TOPIC.equals(errorTransportType)) {
+          errorDestination = errorSession.createTopic(errorTransportName);
+        } else {
+          errorDestination = errorSession.createQueue(errorTransportName);
+        }
+
+        errorProducer = errorSession.createProducer(errorDestination);
+      } catch (JMSException e) {
+        log.error("Error creating error producer", e);
+        stopped = true;
+        throw new RuntimeException("Failed to initialize the error endpoint");
+      }
+    }
+  }
+
+  void awaitOutcome(long timeout) throws JMSException, IOException {
+    Outcome outcome = null;
+    boolean wakeable = enterWait();
+    try {
+      outcome = outcomes.poll(timeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      // woken by drain()
+    } finally {
+      if (wakeable) {
+        exitWait();
+      }
+    }
+    synchronized (dispatchLock) {
+      Thread.interrupted();
+      if (outcome != null) {
+        settleOutcome(outcome);
+      }
+    }
+    settleOutcomes();
+  }
+
+  void settleOutcomes() throws JMSException, IOException {
+    synchronized (dispatchLock) {
+      Thread.interrupted();
+      Outcome outcome;
+      while ((outcome = outcomes.poll()) != null) {
+        settleOutcome(outcome);
+      }
+    }
+  }
+
+  void settleOutcome(Outcome outcome) throws JMSException, IOException {
+    if (outcome == WAKE_UP) {
+      return;
+    }
+    inFlight--;
+    settle(outcome.getMessage(), outcome.getFailure());
+  }
+
+  /**
+   * @return the next message, or null on timeout or when woken by
+   *         {@link #drain()}
+   */
+  Message receive(long timeout) throws JMSException {
+    if (!enterWait()) {
+      return null;
+    }
+    try {
+      return consumer.receive(receiveTimeout(timeout));
+    } catch (JMSException e) {
+      if (process) {
+        throw e;
+      }
+      return null;
+    } finally {
+      exitWait();
+    }
+  }
+
+  /**
+   * Retries or routes a failed message and acknowledges it, on the thread
+   * that owns the session.
+   */
+  void settle(Message message, Exception failure) throws JMSException, IOException {
+    if (route(message, failure)) {
+      acknowledge(message);
+      log.debug("Acknowledge the message on the consumer");
+    }
+  }
+
+  /**
+   * @return false if the message was left to be redelivered and must not be
+   *         acknowledged
+   */
+  boolean route(Message message, Exception failure) throws JMSException, IOException {
+    putMdc(message);
+    try {
+      if (failure instanceof UnableToProcessMessageException) {
+        return handleUnableToProcessMessage(message, (UnableToProcessMessageException) failure);
+      } else if (failure != null) {
+        return processFailureMessage(message, failure);
+      }
+      return true;
+    } finally {
+      removeMdc();
+    }
+  }
+
+  void putMdc(Message message) {
+    // set unique id for logging
+    try {
+      MDC.put(UNIQUE_ID_MDC_KEY, message.getJMSMessageID());
+      MDC.put(CORRELATION_ID_MDC_KEY, message.getJMSCorrelationID());
+    } catch (IllegalArgumentException | JMSException e1) {
+      log.error("Error setting MDC unique id", e1);
+    }
+  }
+
+  void removeMdc() {
+    // remove unique id for logging
+    try {
+      MDC.remove(UNIQUE_ID_MDC_KEY);
+      MDC.remove(CORRELATION_ID_MDC_KEY);
+    } catch (IllegalArgumentException e1) {
+      log.error("Error remvoing MDC unique id");
+    }
+  }
+
+  /**
+   * @return true when a rollback would also return messages that were handled
+   *         or are still in flight, so failures are sent back instead
+   */
+  boolean redeliversFailures() {
+    return transacted || acknowledgesIndividually();
+  }
+
+  /**
+   * Holds a short retry to be handled again without a round trip through the
+   * broker.
+   *
+   * @return false if the retry must go through the broker
+   */
+  boolean retryLocally(ActiveMQMessage message) throws JMSException {
+    return false;
+  }
+
+  void acknowledge(Message message) throws JMSException {
+    if (acknowledgesIndividually()) {
+      // Individual acknowledge, other messages may still be in flight
+      message.acknowledge();
+    } else {
+      acknowledge(1);
+    }
+  }
+
+  /**
+   * Acknowledges the messages handled since the last call.  A transacted
+   * processor only commits once enough messages or time have accumulated.
+   */
+  void acknowledge(int messages) throws JMSException {
+    if (!transacted) {
+      consumer.acknowledge();
+      return;
+    }
+    uncommitted += messages;
+    if (uncommitted >= commitSize) {
+      commitPending();
+    } else {
+      commitIfDue();
+    }
+  }
+
+  void rollback() throws JMSException {
+    if (transacted) {
+      uncommitted = 0;
+      lastCommit = System.currentTimeMillis();
+      session.rollback();
+    } else {
+      consumer.rollback();
+    }
+  }
+
+  void commitIfDue() throws JMSException {
+    if (uncommitted > 0 && System.currentTimeMillis() - lastCommit >= commitInterval) {
+      commitPending();
+    }
+  }
+
+  void commitPending() {
+    if (!transacted || uncommitted == 0 || session == null) {
+      return;
+    }
+    try {
+      session.commit();
+      log.debug("Committed {} messages", uncommitted);
+    } catch (JMSException e) {
+      // Roll back so the broker redelivers them, and stop so the handler
+      // replaces this processor with one on a new session
+      log.error("Error committing {} messages, rolling back and stopping the processor", uncommitted, e);
+      process = false;
+      stopped = true;
+      try {
+        session.rollback();
+      } catch (JMSException e1) {
+        log.debug("Error rolling back after a failed commit", e1);
+      }
+    }
+    uncommitted = 0;
+    lastCommit = System.currentTimeMillis();
+  }
+
+  // Wakes the receive loop in time to commit
+  long receiveTimeout(long timeout) {
+    if (!transacted || uncommitted == 0) {
+      return timeout;
+    }
+    return Math.max(1, Math.min(timeout, lastCommit + commitInterval - System.currentTimeMillis()));
+  }
+
+  void closeSessions() {
+    try {
+      if (consumer != null) {
+        consumer.close();
+      }
+    } catch (Exception e) {
+    }
+    // close sessions, the connection may be shared
+    try {
+      if (errorSession != null && errorSession != session) {
+        errorSession.close();
+      }
+      if (session != null) {
+        session.close();
+      }
+    } catch (Exception e) {
+      log.warn("Error closing session", e);
+    }
+    // close connection
+    try {
+      if (connection != null && connectionPool != null) {
+        log.info("Releasing shared connection");
+        connectionPool.release(connection);
+      } else if (connection != null) {
+        log.info("Closing connection");
+        connection.close();
+      }
+    } catch (Exception e) {
+      log.warn("Error closing connection", e);
+    }
+    connection = null;
+  }
+
+  /**
+   * @return false if the message was left to be redelivered and must not be
+   *         acknowledged
+   */
+  boolean handleUnableToProcessMessage(Message message, UnableToProcessMessageException upme) throws JMSException, IOException {
+    if (UnableToProcessMessageException.HandleAction.RETRY.equals(upme.getHandleAction())) {
+      if (shouldRetry(message, upme)) {
+        ActiveMQMessage msg = produceRetryMessage(message, upme);
+        if (msg == null) {
+          log.info("Retry policy gave up on the message, process failure message");
+          return processFailureMessage(message, upme);
+        }
+        log.warn("Failure processing message: " + upme.getMessage(), upme);
+        if (retryLocally(msg)) {
+          return false;
+        }
+        log.info("Retry count less than threshold, increment count and requeue, with delay time of " + msg.getStringProperty(ScheduledMessage.AMQ_SCHEDULED_DELAY));
+        // send message back to queue with greater retry count
+        sendRetry(msg);
+      } else {
+        log.info("Retry count greater than threshold, process failure message");
+        return processFailureMessage(message, upme);
+      }
+    } else if (UnableToProcessMessageException.HandleAction.DROP.equals(upme.getHandleAction())) {
+      log.info("Dropping message {}", message.getJMSMessageID());
+    } else {
+      return processFailureMessage(message, upme);
+    }
+    return true;
+  }
+
+  /**
+   * Sends a retry to the queue with a scheduled delay, or to the retry tier
+   * for its delay.
+   */
+  void sendRetry(ActiveMQMessage message) throws JMSException, IOException {
+    long tier = 0;
+    if (retryTiers != null) {
+      long retryWait = message.getLongProperty(ScheduledMessage.AMQ_SCHEDULED_DELAY);
+      tier = retryTiers.tierFor(retryWait);
+      // Too short for a tier, the scheduled delay is kept
+      if (tier > 0) {
+        message.setProperty(ScheduledMessage.AMQ_SCHEDULED_DELAY, null);
+        message.setLongProperty(RETRY_DUE_PROP_NAME, System.currentTimeMillis() + retryWait);
+      }
+    }
+    if (tier > 0) {
+      tierProducer.send(session.createQueue(retryTiers.queueName(transportName, tier)), message);
+    } else {
+      producer.send(message);
+    }
+  }
+
+  public int getRetryCount(Message message) throws JMSException {
+    log.debug("Getting retry count");
+    int retryCount = 1; // must be GT 0 to allow retryCalculationDelay to work
+    String retryCountString = message.getStringProperty(DELIVERY_COUNT_PROP_NAME);
+    if (retryCountString != null) {
+      retryCount = Integer.parseInt(retryCountString);
+    }
+    return retryCount;
+  }
+
+  public boolean shouldRetry(Message message, UnableToProcessMessageException upme) throws JMSException {
+    int retryCount = getRetryCount(message);
+    int retryThreshold = requestRetryThreshold;
+    // allow exception to pass in number of retries
+    if (upme.getNumberOfRetries() != null) {
+      retryThreshold = upme.getNumberOfRetries();
+    }
+    log.debug("Current count: {}, Threshold: {}", String.valueOf(retryCount), String.valueOf(retryThreshold));
+    return (retryCount <= retryThreshold) ? true : false;
+  }
+
+  /**
+   * @return the message to send back, or null if the retry policy gave up on
+   *         it
+   */
+  public ActiveMQMessage produceRetryMessage(Message message, UnableToProcessMessageException upme) throws JMSException, IOException {
+    int retryCount = getRetryCount(message);
+    // Sending the retry resets the timestamp, so the first one is kept
+    long firstAttempt = message.propertyExists(FIRST_ATTEMPT_PROP_NAME) ? message.getLongProperty(FIRST_ATTEMPT_PROP_NAME) : message.getJMSTimestamp();
+    long previousWait = message.propertyExists(RETRY_WAIT_PROP_NAME) ? message.getLongProperty(RETRY_WAIT_PROP_NAME) : 0;
+    long elapsed = firstAttempt > 0 ? Math.max(0, System.currentTimeMillis() - firstAttempt) : 0;
+    long retryWait = calculateRetryWait(retryCount, previousWait, elapsed, upme);
+    if (retryWait < 0) {
+      return null;
+    }
+
+    ActiveMQMessage msg = (ActiveMQMessage) message;
+    msg.setReadOnlyProperties(false);
+    msg.setLongProperty(ScheduledMessage.AMQ_SCHEDULED_DELAY, retryWait);
+    msg.setLongProperty(RETRY_WAIT_PROP_NAME, retryWait);
+    if (firstAttempt > 0) {
+      msg.setLongProperty(FIRST_ATTEMPT_PROP_NAME, firstAttempt);
+    }
+    // null out AMQ scheduledJobId or will only work on first
+    // re-delivery
+    msg.setProperty(AMQ_JOB_ID_PROP_NAME, null);
+    msg.setIntProperty(DELIVERY_COUNT_PROP_NAME, upme instanceof CircuitOpenException ? retryCount : ++retryCount);
+
+    if (msg.getJMSCorrelationID() == null || msg.getJMSCorrelationID()
+                                                .equals("")) {
+      msg.setJMSCorrelationID(msg.getJMSMessageID());
+    }
+
+    return msg;
+  }
+
+  public long calculateRetryWait(int retryCount, UnableToProcessMessageException upme) {
+    return calculateRetryWait(retryCount, 0, 0, upme);
+  }
+
+  /*
+   * long calculateRetryWait(int retryCount, UnableToProcessMessageException
+   * upme) if UnableToProcessMessageException.ForceRetryWaitDelay is set as GT
+   * 0, then that value is used for the retryWait used for when systems are down
+   * and tell us when they'll be back online (ie. workday)
+   */
+  public long calculateRetryWait(int retryCount, long previousWait, long elapsed, UnableToProcessMessageException upme) {
+    // A paused type asks to come back exactly when its breaker reopens
+    if (upme instanceof CircuitOpenException) {
+      return upme.getRetryWait();
+    }
+
+    Integer initialOffset = upme.getInitialOffset();
+    if (initialOffset == null) {
+      initialOffset = 0;
+    }
+
+    // force initial offset will retryWait that amount
+    if (upme.isForceInitialOffsetDelay()) {
+      return initialOffset.longValue();
+    }
+
+    if (retryCount == 1 && initialOffset > 0) {
+      return initialOffset.longValue();
+    }
+    return retryPolicyFor(upme).retryWait(retryCount, previousWait, elapsed, upme);
+  }
+
+  /**
+   * @return the policy the exception names, otherwise the processor's
+   */
+  RetryPolicy retryPolicyFor(UnableToProcessMessageException upme) {
+    if (upme.getRetryPolicy() != null) {
+      RetryPolicy named = RetryPolicies.get(upme.getRetryPolicy());
+      if (named != null) {
+        return named;
+      }
+      log.warn("No retry policy named {}, using the processor's", upme.getRetryPolicy());
+    }
+    return retryPolicy != null ? retryPolicy : RetryPolicies.get(RetryPolicies.DEFAULT);
+  }
+
+  /**
+   * @return false if the message was left to be redelivered and must not be
+   *         acknowledged
+   */
+  boolean processFailureMessage(Message message, Exception e) throws JMSException, IOException {
+    log.error("Failure processing message: " + e.getMessage(), e);
+    if (errorProducer != null) {
+      log.info("Sending to error queue");
+      ActiveMQMessage msg = (ActiveMQMessage) message;
+      msg.setReadOnlyProperties(false);
+      try {
+        // convert to an error message object
+        if (errorMessageConvert) {
+          ErrorMessage em = new ErrorMessage();
+
+          if (e instanceof UnableToProcessMessageException) {
+            em.setShortDescription(((UnableToProcessMessageException) e).getShortDescription());
+            em.setSourceSystem(((UnableToProcessMessageException) e).getSourceSystem());
+          } else {
+            // Try to grab something for the short Message
+            String shortMessage = e.getMessage();
+            if (shortMessage != null) {
+              int shortMessageLength = shortMessage.length() > 256 ? 256 : shortMessage.length();
+              em.setShortDescription(e.getMessage()
+                                      .substring(0, shortMessageLength));
+            } else {
+              em.setShortDescription("Error: " + e.getClass()
+                                                  .getName());
+            }
+          }
+
+          em.setDescription(e.getMessage());
+          em.setStack(getStackTrace(e));
+          try {
+            TextMessage tm = errorSession.createTextMessage(objectMapper.writeValueAsString(em));
+            errorProducer.send(tm);
+          } catch (JsonProcessingException e1) {
+            log.error("Unable to send message on error queue: " + em.toString());
+          }
+        }
+        // send original message with error headers
+        else {
+          msg.setStringProperty("error", e.getMessage());
+          msg.setStringProperty("errorStackTrace", getStackTrace(e));
+          errorProducer.send(msg);
+        }
+      } catch (JMSException e1) {
+        if (e instanceof UnableToProcessMessageException) {
+          UnableToProcessMessageException up = (UnableToProcessMessageException) e;
+          log.error("Unable to send message on error queue: {} {} {}", up.getShortDescription(), up.getSourceSystem(), up.getMessage());
+        }
+        log.error("Unable to send message on error queue: " + e.getMessage());
+      }
+    } else if (redeliversFailures()) {
+      return redeliver(message, e);
+    } else {
+      try {
+        rollback();
+      } catch (JMSException e1) {
+        log.error("Error rolling back message", e1);
+      }
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Sends a failed message back to the queue, or to the dead letter queue once
+   * it has been redelivered as often as the broker would, in the session of
+   * the processor.
+   *
+   * @return true, the message is to be acknowledged
+   */
+  boolean redeliver(Message message, Exception e) throws JMSException, IOException {
+    ActiveMQMessage msg = (ActiveMQMessage) message;
+    msg.setReadOnlyProperties(false);
+    int redeliveries = msg.propertyExists(REDELIVERY_COUNT_PROP_NAME) ? msg.getIntProperty(REDELIVERY_COUNT_PROP_NAME) : 0;
+    if (redeliveries < MAX_REDELIVERIES) {
+      log.info("Sending the message back to the queue, redelivery {}", redeliveries + 1);
+      // Otherwise a message that came through the scheduler waits again
+      msg.setProperty(ScheduledMessage.AMQ_SCHEDULED_DELAY, null);
+      msg.setProperty(AMQ_JOB_ID_PROP_NAME, null);
+      msg.setIntProperty(REDELIVERY_COUNT_PROP_NAME, redeliveries + 1);
+      producer.send(msg);
+    } else {
+      log.info("Sending to dead letter queue {}", deadLetterQueueName);
+      msg.setStringProperty("error", e.getMessage());
+      msg.setStringProperty("errorStackTrace", getStackTrace(e));
+      if (deadLetterProducer == null) {
+        deadLetterProducer = session.createProducer(session.createQueue(deadLetterQueueName));
+      }
+      deadLetterProducer.send(msg);
+    }
+    return true;
+  }
+
+  private String getStackTrace(Exception e) {
+    StringWriter sw = new StringWriter();
+    PrintWriter pw = new PrintWriter(sw);
+    e.printStackTrace(pw);
+    return sw.toString();
+  }
+
+  public boolean isStopped() {
+    return stopped;
+  }
+}
@@ -18,19 +18,29 @@ package edu.psu.activemq;
  */
 
 
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Enumeration;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.jms.Connection;
 import javax.jms.JMSException;
-import javax.jms.Queue;
-import javax.jms.QueueBrowser;
-import javax.jms.Session;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
+import org.apache.activemq.ActiveMQConnection;
 import org.apache.activemq.ActiveMQConnectionFactory;
 
 import edu.psu.activemq.exception.MessageHandlerException;
@@ -47,6 +57,8 @@ public class MessageHandler {
 
   public static final int MIN_THRESHOLD = 3;
   public static final int MIN_RECHECK_PERIOD = 250;
+  // Milliseconds terminate() waits for the monitor when it has no timeout
+  static final long MONITOR_STOP_WAIT = 1000;
 
   public static final String BROKER_URL_PROP_NAME = "broker.url";
   public static final String TRANSPORT_NAME_PROP_NAME = "queue.name";
@@ -56,16 +68,80 @@ public class MessageHandler {
   public static final String ERROR_TRANSPORT_NAME_PROP_NAME = "error.transport.name";
   public static final String ERROR_TRANSPORT_TYPE_PROP_NAME = "error.transport.type";
   public static final String ERROR_MESSAGE_CONVERT = "error.message.convert";
+  public static final String DEAD_LETTER_QUEUE_PROP_NAME = "error.dead.letter.queue";
 
   public static final String QUEUE_SIZE_HEARTBEAT_LOG_COUNT = "queue.size.log.cycle.count";
+  public static final String QUEUE_DEPTH_PROBE_PROP_NAME = "queue.depth.probe";
+  public static final String QUEUE_DEPTH_PROBE_TIMEOUT_PROP_NAME = "queue.depth.probe.timeout";
+  public static final String QUEUE_DEPTH_PROBE_MAX_SCAN_PROP_NAME = "queue.depth.probe.max.scan";
+  public static final String ADVISORY_ENABLED_PROP_NAME = "queue.advisory.enabled";
+  public static final String RECONCILE_PERIOD_PROP_NAME = "queue.reconcile.period";
+  public static final String SCALING_POLICY_PROP_NAME = "scaling.policy";
+  public static final String SCALING_DRAIN_TARGET_PROP_NAME = "scaling.drain.target";
+  public static final String SCALING_SCALE_IN_COOLDOWN_PROP_NAME = "scaling.scalein.cooldown";
+  public static final String MIN_PROCESSORS_PROP_NAME = "processor.min";
+  public static final String MAX_PROCESSORS_PROP_NAME = "processor.max";
+  public static final String PROCESSOR_PROFILE_PROP_NAME = "processor.profile";
+  public static final String CONNECTION_STRIPES_PROP_NAME = "connection.stripes";
+  public static final String CONSUMPTION_MODE_PROP_NAME = "processor.consumption.mode";
+  public static final String TRANSACTED_PROP_NAME = "processor.transacted";
+  public static final String COMMIT_SIZE_PROP_NAME = "processor.commit.size";
+  public static final String COMMIT_INTERVAL_PROP_NAME = "processor.commit.interval";
+  public static final String PREFETCH_PROP_NAME = "queue.prefetch";
+  public static final String CONCURRENCY_PROP_NAME = "processor.concurrency";
+  public static final String ORDERING_KEY_PROP_NAME = "processor.ordering.key";
+  public static final String ASYNC_WINDOW_PROP_NAME = AsyncMessageProcessor.ASYNC_WINDOW_PROP_NAME;
+  public static final String PREFETCH_ADAPTIVE_PROP_NAME = "queue.prefetch.adaptive";
+  public static final String PREFETCH_BUFFER_PROP_NAME = "queue.prefetch.buffer";
+  public static final String LIMITER_ENABLED_PROP_NAME = "processor.limiter.enabled";
+  public static final String LIMITER_MAX_PROP_NAME = "processor.limiter.max";
+  public static final String BREAKER_THRESHOLD_PROP_NAME = "processor.breaker.threshold";
+  public static final String BREAKER_COOLDOWN_PROP_NAME = "processor.breaker.cooldown";
+  public static final String RATE_LIMIT_PROP_NAME = "processor.rate.limit";
+  public static final String RATE_BURST_PROP_NAME = "processor.rate.burst";
+  public static final String RATE_TYPE_LIMITS_PROP_NAME = "processor.rate.type.limits";
+  public static final String RETRY_POLICY_PROP_NAME = "processor.retry.policy";
+  public static final String RETRY_JITTER_PROP_NAME = "processor.retry.jitter";
+  public static final String RETRY_MAX_DELAY_PROP_NAME = "processor.retry.max.delay";
+  public static final String RETRY_DEADLINE_PROP_NAME = "processor.retry.deadline";
+  public static final String RETRY_TYPE_POLICIES_PROP_NAME = "processor.retry.type.policies";
+  public static final String RETRY_LOCAL_THRESHOLD_PROP_NAME = "processor.retry.local.threshold";
+  public static final String RETRY_MODE_PROP_NAME = "processor.retry.mode";
+  public static final String RETRY_TIERS_PROP_NAME = "processor.retry.tiers";
+  public static final String TYPE_ROUTING_PROP_NAME = "processor.type.routing";
+  public static final String TYPE_PREFETCH_PROP_NAME = "processor.type.prefetch";
+  public static final String TYPE_CONCURRENCY_PROP_NAME = "processor.type.concurrency";
+  public static final String TYPE_MAX_PROCESSORS_PROP_NAME = "processor.type.max.processors";
+  public static final String TYPE_SHARED_DELEGATES_PROP_NAME = "processor.type.shared.delegates";
+
+  // Queue consumer prefetch used by the broker when none is configured
+  public static final int DEFAULT_PREFETCH = 1000;
+
+  // Upper bound for I/O bound handlers when no maximum is configured
+  public static final int IO_PROCESSORS_PER_CORE = 16;
   
   public static final String MESSAGE_QUEUE_OR_TOPIC_ONLY = "If provided, the " + ERROR_TRANSPORT_TYPE_PROP_NAME + " parameter must be set to either QUEUE or TOPIC";
   public static final String MESSAGE_NO_VALUE_FOR_REQUIRED_PROPERTY = BROKER_URL_PROP_NAME + ", " + TRANSPORT_NAME_PROP_NAME + ", " + ", " + BROKER_USERNAME_PROP_NAME + " and " + BROKER_PASSWORD_PROP_NAME + " are required configuration properties with no defaults";
   public static final String MESSAGE_RETRY_THRESHOLD_MUST_BE_AN_INTEGER = REQUEST_RETRY_THRESHOLD + " must be an integer";
+  public static final String MESSAGE_THRESHOLD_OR_RATE_ONLY = "If provided, the " + SCALING_POLICY_PROP_NAME + " parameter must be set to either THRESHOLD or RATE";
+  public static final String MESSAGE_CPU_OR_IO_ONLY = "If provided, the " + PROCESSOR_PROFILE_PROP_NAME + " parameter must be set to either CPU or IO";
+  public static final String MESSAGE_PROCESSOR_LIMITS = MIN_PROCESSORS_PROP_NAME + " must be at least 1 and no greater than " + MAX_PROCESSORS_PROP_NAME;
+  public static final String MESSAGE_POLL_OR_LISTENER_ONLY = "If provided, the " + CONSUMPTION_MODE_PROP_NAME + " parameter must be set to either POLL or LISTENER";
+  public static final String MESSAGE_ORDERING_KEY_ONLY = "If provided, the " + ORDERING_KEY_PROP_NAME + " parameter must be set to GROUP_ID, CORRELATION_ID or PROCESSOR_KEY";
+  public static final String MESSAGE_RATE_TYPE_LIMITS = "If provided, the " + RATE_TYPE_LIMITS_PROP_NAME + " parameter must be a comma separated list of key=rate pairs";
+  public static final String MESSAGE_RETRY_TYPE_POLICIES = "If provided, the " + RETRY_TYPE_POLICIES_PROP_NAME + " parameter must be a comma separated list of key=policy pairs";
+  public static final String MESSAGE_NONE_FULL_OR_DECORRELATED_ONLY = "If provided, the " + RETRY_JITTER_PROP_NAME + " parameter must be set to NONE, FULL or DECORRELATED";
+  public static final String MESSAGE_SCHEDULER_OR_TIERED_ONLY = "If provided, the " + RETRY_MODE_PROP_NAME + " parameter must be set to either SCHEDULER or TIERED";
+  public static final String MESSAGE_RETRY_TIERS = "If provided, the " + RETRY_TIERS_PROP_NAME + " parameter must be a comma separated list of positive delays in milliseconds";
+  public static final String MESSAGE_TYPE_ROUTE_LIMITS = "If provided, the " + TYPE_PREFETCH_PROP_NAME + ", " + TYPE_CONCURRENCY_PROP_NAME + " and " + TYPE_MAX_PROCESSORS_PROP_NAME + " parameters must be comma separated lists of key=integer pairs";
+  public static final String MESSAGE_TYPE_DELEGATING_ONLY = TYPE_ROUTING_PROP_NAME + " and " + TYPE_SHARED_DELEGATES_PROP_NAME + " require a TypeDelegatingMessageProcessor";
+  public static final String MESSAGE_UNKNOWN_RETRY_POLICY = "No retry policy is registered under the name given by " + RETRY_POLICY_PROP_NAME;
+  public static final String MESSAGE_STATISTICS_OR_BROWSER_ONLY = "If provided, the " + QUEUE_DEPTH_PROBE_PROP_NAME + " parameter must be set to either STATISTICS or BROWSER";
 
   @Getter(value = AccessLevel.NONE)
   @Setter(value = AccessLevel.NONE)
-  List<MessageProcessor> handlerList = new ArrayList<>();
+  // Read by terminate() while the monitor may still be scaling
+  List<MessageProcessor> handlerList = new CopyOnWriteArrayList<>();
 
   @Getter(value = AccessLevel.NONE)
   @Setter(value = AccessLevel.NONE)
@@ -79,6 +155,14 @@ public class MessageHandler {
   @Setter(value = AccessLevel.NONE)
   Thread monitorThread;
 
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  volatile boolean running = true;
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  final CountDownLatch monitorStopped = new CountDownLatch(1);
+
   boolean loadFromProperties = false;
   String brokerUrl;
   String transportName;
@@ -88,17 +172,189 @@ public class MessageHandler {
   TransportType errorTransportType = TransportType.QUEUE;
   int requestRetryThreshold = 3;
   boolean convertErrorMessage = false;
+  String deadLetterQueueName = "ActiveMQ.DLQ";
 
   int messageThreshold = 10;
   int recheckPeriod = 6000;
   int maxProcessorFailures = 10;
   int cores;
+  int minProcessors = 1;
+  // 0 sizes the maximum from the profile
+  int maxProcessors = 0;
+  ProcessorProfile processorProfile = ProcessorProfile.CPU;
+
+  // Number of broker connections shared by the monitor and all processors
+  int connectionStripes = 1;
+
+  ConsumptionMode consumptionMode = ConsumptionMode.POLL;
+
+  boolean transacted = false;
+  int commitSize = 100;
+  long commitInterval = 1000;
+
+  // Messages each processor handles at once
+  int concurrency = 1;
+  OrderingKey orderingKey = null;
+  // 0 keeps the processor's own setting
+  int asyncWindow = 0;
+
+  // 0 leaves the prefetch to the broker
+  int prefetch = 0;
+  boolean prefetchAdaptive = false;
+  // Milliseconds of work each processor should hold when adaptive
+  long prefetchBuffer = 1000;
+
+  // Adapts the messages in flight across all processors to downstream latency
+  boolean limiterEnabled = false;
+  int limiterMax = 1000;
+
+  // Retries in a row that pause a processor, 0 never pauses
+  int breakerThreshold = 0;
+  long breakerCooldown = 30000;
+
+  // Messages per second across all processors, 0 is unlimited
+  double rateLimit = 0;
+  int rateBurst = 1;
+  // Messages per second by processor key, for type delegating processors
+  Map<String, Double> typeRateLimits = new HashMap<>();
+
+  @Setter(value = AccessLevel.NONE)
+  TokenBucket rateLimiter;
+
+  // A policy registered with RetryPolicies, otherwise one is built from the
+  // jitter, maximum delay and deadline
+  String retryPolicyName;
+  BackoffRetryPolicy.Jitter retryJitter = BackoffRetryPolicy.Jitter.NONE;
+  long retryMaxDelay = 0;
+  long retryDeadline = 0;
+  // Retry policy names by processor key, for type delegating processors
+  Map<String, String> typeRetryPolicies = new HashMap<>();
+  // Retries shorter than this many milliseconds stay in the processor, 0
+  // sends them all to the broker
+  long retryLocalThreshold = 0;
+
+  RetryMode retryMode = RetryMode.SCHEDULER;
+  // Delays of the retry tier queues in milliseconds, for the TIERED mode
+  long[] retryTierDelays = { 5000, 60000, 600000 };
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  RetryTiers retryTiers;
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  List<RetryTierMover> retryTierMovers = new ArrayList<>();
+
+  @Setter(value = AccessLevel.NONE)
+  RetryPolicy retryPolicy;
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  Map<String, TokenBucket> typeRateLimiters = new HashMap<>();
+
+  @Setter(value = AccessLevel.NONE)
+  ConcurrencyLimiter concurrencyLimiter;
+
+  // JMS message selector of every processor, null takes every message
+  String selector;
+
+  // Consume each registered type with processors of its own, selected by the
+  // broker, leaving this handler the messages of no registered type
+  boolean typeRouting = false;
+  // Limits by processor key for type routing, the handler's own otherwise
+  Map<String, Integer> typePrefetch = new HashMap<>();
+  Map<String, Integer> typeConcurrency = new HashMap<>();
+  Map<String, Integer> typeMaxProcessors = new HashMap<>();
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  List<MessageHandler> typeRoutes = new ArrayList<>();
+
+  // Register the delegates once for every processor, in a registry that can
+  // be changed while the handler runs
+  boolean sharedDelegates = false;
+
+  // Null unless the delegates are shared
+  @Setter(value = AccessLevel.NONE)
+  DelegateRegistry delegateRegistry;
+
+  // The handler a type route shares its connections, limits and retries with
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  MessageHandler parent;
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  SharedConnectionPool connectionPool;
   int queueSizeHeartbeatCount = 100;
+  QueueDepthProbe.Type queueDepthProbeType = QueueDepthProbe.Type.STATISTICS;
+  long queueDepthProbeTimeout = 5000;
+  // Most messages a browse counts when the scaling policy wants the real depth
+  int queueDepthProbeMaxScan = 10000;
+
+  // Set to supply a custom probe, otherwise one is built from the probe type
+  QueueDepthProbe queueDepthProbe;
+
+  // Scale from broker advisories, probing the queue only to reconcile
+  boolean advisoryEnabled = false;
+  int reconcilePeriod = 60000;
+
+  // Set to supply a custom policy, otherwise one is built from the policy type
+  ScalingPolicy scalingPolicy;
+  ScalingPolicy.Type scalingPolicyType = ScalingPolicy.Type.THRESHOLD;
+  long scalingDrainTarget = 30000;
+  long scalingScaleInCooldown = 60000;
+
+  @Setter(value = AccessLevel.NONE)
+  ProcessorStatistics statistics = new ProcessorStatistics();
 
   public MessageHandler(Class<? extends MessageProcessor> clazz) throws NoSuchMethodException, SecurityException, InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
     constructor = clazz.getConstructor();
   }
 
+  // A route for the messages of one type, see startTypeRoutes
+  private MessageHandler(MessageHandler parent, String key) {
+    this.parent = parent;
+    constructor = parent.constructor;
+    brokerUrl = parent.brokerUrl;
+    transportName = parent.transportName;
+    errorTransportName = parent.errorTransportName;
+    errorTransportType = parent.errorTransportType;
+    username = parent.username;
+    password = parent.password;
+    requestRetryThreshold = parent.requestRetryThreshold;
+    convertErrorMessage = parent.convertErrorMessage;
+    deadLetterQueueName = parent.deadLetterQueueName;
+    messageThreshold = parent.messageThreshold;
+    recheckPeriod = parent.recheckPeriod;
+    maxProcessorFailures = parent.maxProcessorFailures;
+    maxProcessors = parent.typeMaxProcessors.getOrDefault(key, parent.maxProcessors);
+    // 0 sizes the maximum from the profile
+    minProcessors = maxProcessors > 0 ? Math.min(parent.minProcessors, maxProcessors) : parent.minProcessors;
+    processorProfile = parent.processorProfile;
+    consumptionMode = parent.consumptionMode;
+    transacted = parent.transacted;
+    commitSize = parent.commitSize;
+    commitInterval = parent.commitInterval;
+    concurrency = parent.typeConcurrency.getOrDefault(key, parent.concurrency);
+    orderingKey = parent.orderingKey;
+    asyncWindow = parent.asyncWindow;
+    prefetch = parent.typePrefetch.getOrDefault(key, parent.prefetch);
+    prefetchAdaptive = parent.prefetchAdaptive;
+    prefetchBuffer = parent.prefetchBuffer;
+    breakerThreshold = parent.breakerThreshold;
+    breakerCooldown = parent.breakerCooldown;
+    typeRetryPolicies = parent.typeRetryPolicies;
+    retryLocalThreshold = parent.retryLocalThreshold;
+    queueSizeHeartbeatCount = parent.queueSizeHeartbeatCount;
+    queueDepthProbeTimeout = parent.queueDepthProbeTimeout;
+    queueDepthProbeMaxScan = parent.queueDepthProbeMaxScan;
+    scalingPolicyType = parent.scalingPolicyType;
+    scalingDrainTarget = parent.scalingDrainTarget;
+    scalingScaleInCooldown = parent.scalingScaleInCooldown;
+    selector = TypeDelegatingMessageProcessor.keySelector(key);
+  }
+
   public void init() throws MessageHandlerException {
     log.trace("init()");
 
@@ -118,9 +374,54 @@ public class MessageHandler {
       cores = Runtime.getRuntime()
                      .availableProcessors();
       log.info("Running with {} cores", cores);
-      if (cores > 8) {
-        log.info("Setting max cores of 8");
-        cores = 8;
+      if (maxProcessors <= 0) {
+        maxProcessors = ProcessorProfile.IO.equals(processorProfile) ? cores * IO_PROCESSORS_PER_CORE : cores;
+      }
+      validateProcessorLimits();
+      log.info("Running between {} and {} {} bound processors", minProcessors, maxProcessors, processorProfile);
+
+      if (scalingPolicy == null) {
+        scalingPolicy = buildScalingPolicy();
+      }
+
+      if (parent != null) {
+        connectionPool = parent.connectionPool;
+        concurrencyLimiter = parent.concurrencyLimiter;
+        rateLimiter = parent.rateLimiter;
+        typeRateLimiters = parent.typeRateLimiters;
+        retryPolicy = parent.retryPolicy;
+        retryTiers = parent.retryTiers;
+        delegateRegistry = parent.delegateRegistry;
+      } else {
+        connectionPool = new SharedConnectionPool(brokerUrl, username, password, transportName, connectionStripes);
+
+        if (limiterEnabled) {
+          concurrencyLimiter = new ConcurrencyLimiter(Math.min(10, limiterMax), 1, limiterMax);
+          registerLimiter();
+        }
+        if (rateLimit > 0) {
+          rateLimiter = new TokenBucket(rateLimit, rateBurst);
+        }
+        typeRateLimits.forEach((key, rate) -> typeRateLimiters.put(key, new TokenBucket(rate, rateBurst)));
+        retryPolicy = buildRetryPolicy();
+        if (RetryMode.TIERED.equals(retryMode)) {
+          startRetryTierMovers();
+        }
+        if (sharedDelegates) {
+          if (!isTypeDelegating()) {
+            throw new IllegalArgumentException(MESSAGE_TYPE_DELEGATING_ONLY);
+          }
+          delegateRegistry = new DelegateRegistry();
+        }
+      }
+
+      if (typeRouting) {
+        startTypeRoutes();
+      }
+      if (selector != null && advisoryEnabled) {
+        // Advisories count every message on the queue, not just the selected
+        log.warn("Advisories are not used with a selector, polling every {} ms", recheckPeriod);
+        advisoryEnabled = false;
       }
 
       log.trace("Calling start monitor");
@@ -147,8 +448,146 @@ public class MessageHandler {
   }
 
   public void terminate() {
+    terminate(Duration.ZERO);
+  }
+
+  /**
+   * Stops the monitor and drains every processor, waiting up to the timeout
+   * for the messages in flight to finish.
+   *
+   * @return true if every processor drained in time
+   */
+  public boolean terminate(Duration timeout) {
+    long deadline = System.nanoTime() + timeout.toNanos();
+    running = false;
+
+    boolean routesDrained = true;
+    for (MessageHandler route : typeRoutes) {
+      Duration remaining = timeout.isZero() ? Duration.ZERO : Duration.ofNanos(Math.max(1, deadline - System.nanoTime()));
+      routesDrained &= route.terminate(remaining);
+    }
+
+    Thread monitor = monitorThread;
+    if (monitor != null && monitor != Thread.currentThread()) {
+      monitor.interrupt();
+      try {
+        // The monitor owns the processor list until it stops
+        long wait = timeout.isZero() ? TimeUnit.MILLISECONDS.toNanos(MONITOR_STOP_WAIT) : Math.max(0, deadline - System.nanoTime());
+        monitorStopped.await(wait, TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread()
+              .interrupt();
+      }
+    }
+
+    List<CompletableFuture<Void>> drains = new ArrayList<>();
     for (MessageProcessor mp : handlerList) {
-      mp.terminate();
+      drains.add(mp.drain());
+    }
+    CompletableFuture<Void> all = CompletableFuture.allOf(drains.toArray(new CompletableFuture<?>[0]));
+    if (!timeout.isZero()) {
+      try {
+        all.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        log.warn("Message processors did not drain within {}", timeout);
+      } catch (ExecutionException e) {
+        log.warn("Error draining message processors", e);
+      } catch (InterruptedException e) {
+        Thread.currentThread()
+              .interrupt();
+      }
+    }
+    closeMonitorConnection();
+    if (parent == null) {
+      retryTierMovers.forEach(RetryTierMover::stop);
+      unregisterLimiter();
+      if (delegateRegistry != null) {
+        delegateRegistry.cleanUp();
+      }
+    }
+    return all.isDone() && routesDrained;
+  }
+
+  /**
+   * Starts a route for each type the processor registers, consuming that
+   * type's messages with a selector on {@link TypeDelegatingMessageProcessor#KEY_PROPERTY}
+   * and scaling on their depth alone.  This handler is left the messages of
+   * no registered type, including those that only name their type in the
+   * payload.
+   */
+  private void startTypeRoutes() throws MessageHandlerException {
+    if (!isTypeDelegating()) {
+      throw new IllegalArgumentException(MESSAGE_TYPE_DELEGATING_ONLY);
+    }
+
+    Set<String> keys;
+    try {
+      TypeDelegatingMessageProcessor registrations = (TypeDelegatingMessageProcessor) constructor.newInstance();
+      if (delegateRegistry != null) {
+        // Fills the shared registry for the processors to come
+        registrations.setDelegateRegistry(delegateRegistry);
+      }
+      registrations.populateDelegates();
+      keys = registrations.getRegisteredKeys();
+      if (delegateRegistry == null) {
+        registrations.cleanUpDelegates();
+      }
+    } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+      throw new MessageHandlerException("Unable to read the registered types", e);
+    }
+
+    for (String key : keys) {
+      MessageHandler route = new MessageHandler(this, key);
+      log.info("Routing {} with {}", key, route.selector);
+      typeRoutes.add(route);
+      // Each route runs a monitor of its own, which init does not return from
+      Thread monitor = new Thread(() -> {
+        try {
+          route.init();
+        } catch (MessageHandlerException e) {
+          log.error("Route for type {} stopped", key, e);
+        }
+      }, transportName + "-" + key + "-monitor");
+      monitor.setDaemon(true);
+      monitor.start();
+    }
+    selector = TypeDelegatingMessageProcessor.unmatchedSelector(keys);
+  }
+
+  private boolean isTypeDelegating() {
+    return TypeDelegatingMessageProcessor.class.isAssignableFrom(constructor.getDeclaringClass());
+  }
+
+  private ObjectName limiterName() throws JMException {
+    return new ObjectName("edu.psu.activemq:type=ConcurrencyLimiter,name=" + ObjectName.quote(transportName));
+  }
+
+  private void registerLimiter() {
+    try {
+      ObjectName name = limiterName();
+      if (!ManagementFactory.getPlatformMBeanServer()
+                            .isRegistered(name)) {
+        ManagementFactory.getPlatformMBeanServer()
+                         .registerMBean(concurrencyLimiter, name);
+      }
+    } catch (JMException e) {
+      log.warn("Unable to export the concurrency limiter", e);
+    }
+  }
+
+  private void unregisterLimiter() {
+    if (concurrencyLimiter == null) {
+      return;
+    }
+    try {
+      ObjectName name = limiterName();
+      if (ManagementFactory.getPlatformMBeanServer()
+                           .isRegistered(name)) {
+        ManagementFactory.getPlatformMBeanServer()
+                         .unregisterMBean(name);
+      }
+    } catch (JMException e) {
+      log.warn("Unable to remove the concurrency limiter", e);
     }
   }
 
@@ -183,6 +622,11 @@ public class MessageHandler {
     if (errorMessageConvertString != null && !errorMessageConvertString.isEmpty()) {
       convertErrorMessage = Boolean.parseBoolean(errorMessageConvertString);
     }
+
+    String deadLetterQueueString = PropertyUtil.getProperty(DEAD_LETTER_QUEUE_PROP_NAME);
+    if (deadLetterQueueString != null && !deadLetterQueueString.isEmpty()) {
+      deadLetterQueueName = deadLetterQueueString;
+    }
     
     String queueSizeHeartbeatString = PropertyUtil.getProperty(QUEUE_SIZE_HEARTBEAT_LOG_COUNT);
     if (queueSizeHeartbeatString != null && !queueSizeHeartbeatString.isEmpty()) {
@@ -191,6 +635,314 @@ public class MessageHandler {
     else {
       log.warn("The queueSizeHeartbeatCount property was not supplied - defaulting to {}", queueSizeHeartbeatCount);
     }
+
+    String queueDepthProbeString = PropertyUtil.getProperty(QUEUE_DEPTH_PROBE_PROP_NAME);
+    if (queueDepthProbeString != null && !queueDepthProbeString.isEmpty()) {
+      try {
+        queueDepthProbeType = QueueDepthProbe.Type.valueOf(queueDepthProbeString);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(MESSAGE_STATISTICS_OR_BROWSER_ONLY);
+      }
+    }
+
+    String queueDepthProbeTimeoutString = PropertyUtil.getProperty(QUEUE_DEPTH_PROBE_TIMEOUT_PROP_NAME);
+    if (queueDepthProbeTimeoutString != null && !queueDepthProbeTimeoutString.isEmpty()) {
+      queueDepthProbeTimeout = Long.parseLong(queueDepthProbeTimeoutString);
+    }
+
+    String queueDepthProbeMaxScanString = PropertyUtil.getProperty(QUEUE_DEPTH_PROBE_MAX_SCAN_PROP_NAME);
+    if (queueDepthProbeMaxScanString != null && !queueDepthProbeMaxScanString.isEmpty()) {
+      queueDepthProbeMaxScan = Integer.parseInt(queueDepthProbeMaxScanString);
+    }
+
+    String advisoryEnabledString = PropertyUtil.getProperty(ADVISORY_ENABLED_PROP_NAME);
+    if (advisoryEnabledString != null && !advisoryEnabledString.isEmpty()) {
+      advisoryEnabled = Boolean.parseBoolean(advisoryEnabledString);
+    }
+
+    String reconcilePeriodString = PropertyUtil.getProperty(RECONCILE_PERIOD_PROP_NAME);
+    if (reconcilePeriodString != null && !reconcilePeriodString.isEmpty()) {
+      reconcilePeriod = Integer.parseInt(reconcilePeriodString);
+    }
+
+    String scalingPolicyString = PropertyUtil.getProperty(SCALING_POLICY_PROP_NAME);
+    if (scalingPolicyString != null && !scalingPolicyString.isEmpty()) {
+      try {
+        scalingPolicyType = ScalingPolicy.Type.valueOf(scalingPolicyString);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(MESSAGE_THRESHOLD_OR_RATE_ONLY);
+      }
+    }
+
+    String scalingDrainTargetString = PropertyUtil.getProperty(SCALING_DRAIN_TARGET_PROP_NAME);
+    if (scalingDrainTargetString != null && !scalingDrainTargetString.isEmpty()) {
+      scalingDrainTarget = Long.parseLong(scalingDrainTargetString);
+    }
+
+    String scalingScaleInCooldownString = PropertyUtil.getProperty(SCALING_SCALE_IN_COOLDOWN_PROP_NAME);
+    if (scalingScaleInCooldownString != null && !scalingScaleInCooldownString.isEmpty()) {
+      scalingScaleInCooldown = Long.parseLong(scalingScaleInCooldownString);
+    }
+
+    String minProcessorsString = PropertyUtil.getProperty(MIN_PROCESSORS_PROP_NAME);
+    if (minProcessorsString != null && !minProcessorsString.isEmpty()) {
+      minProcessors = Integer.parseInt(minProcessorsString);
+    }
+
+    String maxProcessorsString = PropertyUtil.getProperty(MAX_PROCESSORS_PROP_NAME);
+    if (maxProcessorsString != null && !maxProcessorsString.isEmpty()) {
+      maxProcessors = Integer.parseInt(maxProcessorsString);
+    }
+
+    String connectionStripesString = PropertyUtil.getProperty(CONNECTION_STRIPES_PROP_NAME);
+    if (connectionStripesString != null && !connectionStripesString.isEmpty()) {
+      connectionStripes = Integer.parseInt(connectionStripesString);
+    }
+
+    String processorProfileString = PropertyUtil.getProperty(PROCESSOR_PROFILE_PROP_NAME);
+    if (processorProfileString != null && !processorProfileString.isEmpty()) {
+      try {
+        processorProfile = ProcessorProfile.valueOf(processorProfileString);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(MESSAGE_CPU_OR_IO_ONLY);
+      }
+    }
+
+    String consumptionModeString = PropertyUtil.getProperty(CONSUMPTION_MODE_PROP_NAME);
+    if (consumptionModeString != null && !consumptionModeString.isEmpty()) {
+      try {
+        consumptionMode = ConsumptionMode.valueOf(consumptionModeString);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(MESSAGE_POLL_OR_LISTENER_ONLY);
+      }
+    }
+
+    String transactedString = PropertyUtil.getProperty(TRANSACTED_PROP_NAME);
+    if (transactedString != null && !transactedString.isEmpty()) {
+      transacted = Boolean.parseBoolean(transactedString);
+    }
+
+    String commitSizeString = PropertyUtil.getProperty(COMMIT_SIZE_PROP_NAME);
+    if (commitSizeString != null && !commitSizeString.isEmpty()) {
+      commitSize = Integer.parseInt(commitSizeString);
+    }
+
+    String commitIntervalString = PropertyUtil.getProperty(COMMIT_INTERVAL_PROP_NAME);
+    if (commitIntervalString != null && !commitIntervalString.isEmpty()) {
+      commitInterval = Long.parseLong(commitIntervalString);
+    }
+
+    String concurrencyString = PropertyUtil.getProperty(CONCURRENCY_PROP_NAME);
+    if (concurrencyString != null && !concurrencyString.isEmpty()) {
+      concurrency = Integer.parseInt(concurrencyString);
+    }
+
+    String asyncWindowString = PropertyUtil.getProperty(ASYNC_WINDOW_PROP_NAME);
+    if (asyncWindowString != null && !asyncWindowString.isEmpty()) {
+      asyncWindow = Integer.parseInt(asyncWindowString);
+    }
+
+    String orderingKeyString = PropertyUtil.getProperty(ORDERING_KEY_PROP_NAME);
+    if (orderingKeyString != null && !orderingKeyString.isEmpty()) {
+      try {
+        orderingKey = OrderingKey.valueOf(orderingKeyString);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(MESSAGE_ORDERING_KEY_ONLY);
+      }
+    }
+
+    String prefetchString = PropertyUtil.getProperty(PREFETCH_PROP_NAME);
+    if (prefetchString != null && !prefetchString.isEmpty()) {
+      prefetch = Integer.parseInt(prefetchString);
+    }
+
+    String prefetchAdaptiveString = PropertyUtil.getProperty(PREFETCH_ADAPTIVE_PROP_NAME);
+    if (prefetchAdaptiveString != null && !prefetchAdaptiveString.isEmpty()) {
+      prefetchAdaptive = Boolean.parseBoolean(prefetchAdaptiveString);
+    }
+
+    String prefetchBufferString = PropertyUtil.getProperty(PREFETCH_BUFFER_PROP_NAME);
+    if (prefetchBufferString != null && !prefetchBufferString.isEmpty()) {
+      prefetchBuffer = Long.parseLong(prefetchBufferString);
+    }
+
+    String limiterEnabledString = PropertyUtil.getProperty(LIMITER_ENABLED_PROP_NAME);
+    if (limiterEnabledString != null && !limiterEnabledString.isEmpty()) {
+      limiterEnabled = Boolean.parseBoolean(limiterEnabledString);
+    }
+
+    String limiterMaxString = PropertyUtil.getProperty(LIMITER_MAX_PROP_NAME);
+    if (limiterMaxString != null && !limiterMaxString.isEmpty()) {
+      limiterMax = Integer.parseInt(limiterMaxString);
+    }
+
+    String breakerThresholdString = PropertyUtil.getProperty(BREAKER_THRESHOLD_PROP_NAME);
+    if (breakerThresholdString != null && !breakerThresholdString.isEmpty()) {
+      breakerThreshold = Integer.parseInt(breakerThresholdString);
+    }
+
+    String breakerCooldownString = PropertyUtil.getProperty(BREAKER_COOLDOWN_PROP_NAME);
+    if (breakerCooldownString != null && !breakerCooldownString.isEmpty()) {
+      breakerCooldown = Long.parseLong(breakerCooldownString);
+    }
+
+    String rateLimitString = PropertyUtil.getProperty(RATE_LIMIT_PROP_NAME);
+    if (rateLimitString != null && !rateLimitString.isEmpty()) {
+      rateLimit = Double.parseDouble(rateLimitString);
+    }
+
+    String rateBurstString = PropertyUtil.getProperty(RATE_BURST_PROP_NAME);
+    if (rateBurstString != null && !rateBurstString.isEmpty()) {
+      rateBurst = Integer.parseInt(rateBurstString);
+    }
+
+    String rateTypeLimitsString = PropertyUtil.getProperty(RATE_TYPE_LIMITS_PROP_NAME);
+    if (rateTypeLimitsString != null && !rateTypeLimitsString.isEmpty()) {
+      typeRateLimits = parseTypeRateLimits(rateTypeLimitsString);
+    }
+
+    String retryPolicyString = PropertyUtil.getProperty(RETRY_POLICY_PROP_NAME);
+    if (retryPolicyString != null && !retryPolicyString.isEmpty()) {
+      retryPolicyName = retryPolicyString;
+    }
+
+    String retryJitterString = PropertyUtil.getProperty(RETRY_JITTER_PROP_NAME);
+    if (retryJitterString != null && !retryJitterString.isEmpty()) {
+      try {
+        retryJitter = BackoffRetryPolicy.Jitter.valueOf(retryJitterString);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(MESSAGE_NONE_FULL_OR_DECORRELATED_ONLY);
+      }
+    }
+
+    String retryMaxDelayString = PropertyUtil.getProperty(RETRY_MAX_DELAY_PROP_NAME);
+    if (retryMaxDelayString != null && !retryMaxDelayString.isEmpty()) {
+      retryMaxDelay = Long.parseLong(retryMaxDelayString);
+    }
+
+    String retryDeadlineString = PropertyUtil.getProperty(RETRY_DEADLINE_PROP_NAME);
+    if (retryDeadlineString != null && !retryDeadlineString.isEmpty()) {
+      retryDeadline = Long.parseLong(retryDeadlineString);
+    }
+
+    String retryTypePoliciesString = PropertyUtil.getProperty(RETRY_TYPE_POLICIES_PROP_NAME);
+    if (retryTypePoliciesString != null && !retryTypePoliciesString.isEmpty()) {
+      typeRetryPolicies = parsePairs(retryTypePoliciesString, MESSAGE_RETRY_TYPE_POLICIES);
+    }
+
+    String retryModeString = PropertyUtil.getProperty(RETRY_MODE_PROP_NAME);
+    if (retryModeString != null && !retryModeString.isEmpty()) {
+      try {
+        retryMode = RetryMode.valueOf(retryModeString);
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(MESSAGE_SCHEDULER_OR_TIERED_ONLY);
+      }
+    }
+
+    String retryTiersString = PropertyUtil.getProperty(RETRY_TIERS_PROP_NAME);
+    if (retryTiersString != null && !retryTiersString.isEmpty()) {
+      try {
+        retryTierDelays = Arrays.stream(retryTiersString.split(","))
+                                .mapToLong(d -> Long.parseLong(d.trim()))
+                                .toArray();
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException(MESSAGE_RETRY_TIERS);
+      }
+    }
+
+    String retryLocalThresholdString = PropertyUtil.getProperty(RETRY_LOCAL_THRESHOLD_PROP_NAME);
+    if (retryLocalThresholdString != null && !retryLocalThresholdString.isEmpty()) {
+      retryLocalThreshold = Long.parseLong(retryLocalThresholdString);
+    }
+
+    String typeRoutingString = PropertyUtil.getProperty(TYPE_ROUTING_PROP_NAME);
+    if (typeRoutingString != null && !typeRoutingString.isEmpty()) {
+      typeRouting = Boolean.parseBoolean(typeRoutingString);
+    }
+
+    String typePrefetchString = PropertyUtil.getProperty(TYPE_PREFETCH_PROP_NAME);
+    if (typePrefetchString != null && !typePrefetchString.isEmpty()) {
+      typePrefetch = parseTypeRouteLimits(typePrefetchString);
+    }
+
+    String typeConcurrencyString = PropertyUtil.getProperty(TYPE_CONCURRENCY_PROP_NAME);
+    if (typeConcurrencyString != null && !typeConcurrencyString.isEmpty()) {
+      typeConcurrency = parseTypeRouteLimits(typeConcurrencyString);
+    }
+
+    String sharedDelegatesString = PropertyUtil.getProperty(TYPE_SHARED_DELEGATES_PROP_NAME);
+    if (sharedDelegatesString != null && !sharedDelegatesString.isEmpty()) {
+      sharedDelegates = Boolean.parseBoolean(sharedDelegatesString);
+    }
+
+    String typeMaxProcessorsString = PropertyUtil.getProperty(TYPE_MAX_PROCESSORS_PROP_NAME);
+    if (typeMaxProcessorsString != null && !typeMaxProcessorsString.isEmpty()) {
+      typeMaxProcessors = parseTypeRouteLimits(typeMaxProcessorsString);
+    }
+  }
+
+  static Map<String, Integer> parseTypeRouteLimits(String limits) {
+    Map<String, Integer> parsed = new HashMap<>();
+    try {
+      parsePairs(limits, MESSAGE_TYPE_ROUTE_LIMITS).forEach((key, limit) -> parsed.put(key, Integer.parseInt(limit)));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(MESSAGE_TYPE_ROUTE_LIMITS);
+    }
+    return parsed;
+  }
+
+  static Map<String, Double> parseTypeRateLimits(String limits) {
+    Map<String, Double> parsed = new HashMap<>();
+    try {
+      parsePairs(limits, MESSAGE_RATE_TYPE_LIMITS).forEach((key, rate) -> parsed.put(key, Double.parseDouble(rate)));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(MESSAGE_RATE_TYPE_LIMITS);
+    }
+    return parsed;
+  }
+
+  // Reads key=value pairs separated by commas
+  static Map<String, String> parsePairs(String pairs, String invalidMessage) {
+    Map<String, String> parsed = new HashMap<>();
+    for (String pair : pairs.split(",")) {
+      String[] keyAndValue = pair.split("=");
+      if (keyAndValue.length != 2) {
+        throw new IllegalArgumentException(invalidMessage);
+      }
+      parsed.put(keyAndValue[0].trim(), keyAndValue[1].trim());
+    }
+    return parsed;
+  }
+
+  /**
+   * Starts a mover for each retry tier, which sends messages back to the
+   * queue once due.
+   */
+  private void startRetryTierMovers() {
+    try {
+      retryTiers = new RetryTiers(retryTierDelays);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(MESSAGE_RETRY_TIERS);
+    }
+    for (long delay : retryTiers.getDelays()) {
+      log.info("Moving retries through {}", retryTiers.queueName(transportName, delay));
+      RetryTierMover mover = new RetryTierMover(connectionPool, transportName, retryTiers, delay);
+      mover.start();
+      retryTierMovers.add(mover);
+    }
+  }
+
+  RetryPolicy buildRetryPolicy() {
+    if (retryPolicyName != null) {
+      RetryPolicy named = RetryPolicies.get(retryPolicyName);
+      if (named == null) {
+        throw new IllegalArgumentException(MESSAGE_UNKNOWN_RETRY_POLICY);
+      }
+      return named;
+    }
+    return new BackoffRetryPolicy().setJitter(retryJitter)
+                                   .setMaxDelay(retryMaxDelay)
+                                   .setDeadline(retryDeadline);
   }
 
   void validateConfiguration() {
@@ -199,37 +951,81 @@ public class MessageHandler {
     }
   }
 
+  void validateProcessorLimits() {
+    if (minProcessors < 1 || minProcessors > maxProcessors) {
+      throw new IllegalArgumentException(MESSAGE_PROCESSOR_LIMITS);
+    }
+  }
+
+  /*
+   * The most processors the handler may currently run.  For I/O bound
+   * handlers this follows the measured blocking time: a handler that is
+   * blocked for 9 of every 10 milliseconds needs 10 processors per core to
+   * keep the cores busy.
+   */
+  int currentProcessorLimit() {
+    if (ProcessorProfile.IO.equals(processorProfile)) {
+      long busyNanos = statistics.getCpuBusyNanos();
+      long cpuNanos = statistics.getCpuNanos();
+      int limit = cores;
+      if (busyNanos > 0 && cpuNanos > 0) {
+        limit = (int) Math.min(Integer.MAX_VALUE, (long) Math.ceil(cores * ((double) busyNanos / cpuNanos)));
+      }
+      return Math.max(minProcessors, Math.min(limit, maxProcessors));
+    }
+    return maxProcessors;
+  }
+
+  /**
+   * @return the prefetch for the next processor, as many messages as a
+   *         processor finishes in <code>prefetchBuffer</code> when adaptive
+   */
+  int nextPrefetch() {
+    if (!prefetchAdaptive) {
+      return prefetch;
+    }
+    int limit = prefetch > 0 ? prefetch : DEFAULT_PREFETCH;
+    long completed = statistics.getCompletedMessages();
+    long busyNanos = statistics.getBusyNanos();
+    if (completed == 0 || busyNanos == 0) {
+      return limit;
+    }
+    double latencyMillis = busyNanos / 1e6 / completed;
+    return (int) Math.max(1, Math.min(limit, Math.round(prefetchBuffer / latencyMillis)));
+  }
+
   boolean isNullOrEmpty(String value) {
     return value == null || value.isEmpty();
   }
 
-  Connection connection = null;
-  QueueBrowser browser = null;
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  ActiveMQConnection connection = null;
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  QueueDepthProbe activeProbe = null;
 
-  private int getCurrentQueueSize() {
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  AdvisoryDepthMonitor advisoryMonitor = null;
+
+  private long getCurrentQueueSize() {
     // try 5 times to get
     for (int i = 0; i < 5; i++) {
       try {
-        if (connection == null || browser == null) {
-          connection = buildActivemqConnection(brokerUrl, username, password);
-          connection.start();
-          Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-          Queue destination = session.createQueue(transportName);
-          browser = session.createBrowser(destination);
+        if (activeProbe == null) {
+          activeProbe = buildQueueDepthProbe();
         }
 
-        return Collections.list((Enumeration<?>) browser.getEnumeration())
-                          .size();
+        return activeProbe.getQueueDepth();
       } catch (JMSException e) {
+        if (!running) {
+          break;
+        }
         // failed to connect
         log.warn("Failed to get message count", e);
-        if (connection != null) {
-          try {
-            connection.close();
-          } catch (Exception ex) {
-          }
-          connection = null;
-        }
+        closeMonitorConnection();
         try {
           Thread.sleep(30000L);
         } catch (InterruptedException ie) {
@@ -241,22 +1037,138 @@ public class MessageHandler {
     throw new RuntimeException("Failed to connect to queue and get message count");
   }
 
+  private QueueDepthProbe buildQueueDepthProbe() throws JMSException {
+    if (queueDepthProbe != null) {
+      return queueDepthProbe;
+    }
+
+    Connection connection = getMonitorConnection();
+    int cap = queueDepthProbeCap();
+
+    if (selector != null) {
+      // Queue statistics cannot tell the selected messages from the rest
+      return new BrowserQueueDepthProbe(connection, transportName, selector, cap);
+    }
+
+    QueueDepthProbe browserProbe = new BrowserQueueDepthProbe(connection, transportName, cap);
+    if (QueueDepthProbe.Type.BROWSER.equals(queueDepthProbeType)) {
+      return browserProbe;
+    }
+    return new StatisticsQueueDepthProbe(connection, transportName, queueDepthProbeTimeout, browserProbe);
+  }
+
+  private int queueDepthProbeCap() {
+    // The threshold policy only asks whether the depth is above the threshold,
+    // any other policy wants the real depth but a browse must stop somewhere
+    return scalingPolicy instanceof ThresholdScalingPolicy ? messageThreshold + 1 : queueDepthProbeMaxScan;
+  }
+
+  private void reconcileAdvisoryMonitor(long msgCount) {
+    if (advisoryMonitor == null) {
+      AdvisoryDepthMonitor monitor = null;
+      try {
+        monitor = new AdvisoryDepthMonitor(getMonitorConnection(), transportName);
+        monitor.start();
+      } catch (JMSException e) {
+        log.warn("Unable to subscribe to advisories, falling back to polling every {} ms", recheckPeriod, e);
+        if (monitor != null) {
+          monitor.close();
+        }
+        advisoryEnabled = false;
+        return;
+      }
+      advisoryMonitor = monitor;
+    }
+    advisoryMonitor.reconcile(msgCount, activeProbe != null && activeProbe.isLowerBound());
+  }
+
+  private void waitForNextCheck(long nextReconcile) throws InterruptedException {
+    if (advisoryMonitor == null) {
+      Thread.sleep(recheckPeriod);
+      return;
+    }
+
+    // A busy queue publishes an advisory per message, only decide a few times
+    // a second
+    Thread.sleep(MIN_RECHECK_PERIOD);
+    long untilReconcile = nextReconcile - System.currentTimeMillis();
+    if (untilReconcile > 0) {
+      advisoryMonitor.awaitChange(untilReconcile);
+    }
+  }
+
+  private Connection getMonitorConnection() throws JMSException {
+    if (connection == null) {
+      connection = connectionPool.acquire();
+    }
+    return connection;
+  }
+
+  private void closeMonitorConnection() {
+    if (advisoryMonitor != null) {
+      advisoryMonitor.close();
+      advisoryMonitor = null;
+    }
+    if (activeProbe != null) {
+      activeProbe.close();
+      activeProbe = null;
+    }
+    if (connection != null) {
+      connectionPool.release(connection);
+      connection = null;
+    }
+  }
+
+  private ScalingPolicy buildScalingPolicy() {
+    if (ScalingPolicy.Type.RATE.equals(scalingPolicyType)) {
+      RateBasedScalingPolicy policy = new RateBasedScalingPolicy();
+      policy.setTargetDrainTime(scalingDrainTarget);
+      policy.setScaleInCooldown(scalingScaleInCooldown);
+      return policy;
+    }
+    return new ThresholdScalingPolicy();
+  }
+
   private void startMonitor() throws MessageHandlerException {
     log.info("Starting the monitor");
 
+    monitorThread = Thread.currentThread();
     try {
       int failedProcessorBuilds = 0;
       int noActionCycles = 0;
+      long nextReconcile = 0;
       
-      boolean monitor = true;
-      while (monitor) {
-        //@SuppressWarnings("unchecked")
-        int msgCount = this.getCurrentQueueSize();
+      while (running) {
+        long msgCount;
+        if (advisoryMonitor == null || System.currentTimeMillis() >= nextReconcile) {
+          msgCount = this.getCurrentQueueSize();
+          if (advisoryEnabled) {
+            reconcileAdvisoryMonitor(msgCount);
+            nextReconcile = System.currentTimeMillis() + reconcilePeriod;
+          }
+        } else {
+          msgCount = advisoryMonitor.getEstimate();
+        }
         log.debug("Current Queue Size: " + (msgCount));
+        if (!(scalingPolicy instanceof ThresholdScalingPolicy) && activeProbe != null && activeProbe.isLowerBound()) {
+          log.debug("Queue depth probe stopped at {} messages, the queue holds at least that many", msgCount);
+        }
         try {
-          log.trace("Checking thresholds, count = " + msgCount + " threshold = " + messageThreshold);
-          if (msgCount > messageThreshold || handlerList.isEmpty()) {
-            if (handlerList.size() < cores) {
+          int processorLimit = currentProcessorLimit();
+          ScalingContext context = ScalingContext.builder()
+                                                 .timestamp(System.currentTimeMillis())
+                                                 .queueDepth(msgCount)
+                                                 .currentProcessors(handlerList.size())
+                                                 .maxProcessors(processorLimit)
+                                                 .messageThreshold(messageThreshold)
+                                                 .completedMessages(statistics.getCompletedMessages())
+                                                 .busyNanos(statistics.getBusyNanos())
+                                                 .build();
+          int target = scalingPolicy.targetProcessorCount(context);
+          target = Math.max(minProcessors, Math.min(target, processorLimit));
+          log.trace("Checking scaling policy, count = " + msgCount + " target = " + target);
+          if (target > handlerList.size()) {
+            while (running && handlerList.size() < target) {
               try {
                 log.info("Constructing a new Message Processor, Message Count: {}, Handler List Size: {}", msgCount, handlerList.size());
                 handlerList.add(buildNewMessageProcessor());
@@ -272,13 +1184,16 @@ public class MessageHandler {
                   log.error(msg);
                   throw new MessageHandlerException(msg);
                 }
+                break;
               }
             }
-          } else if (handlerList.size() > 1) {
-            log.info("Removing a Message Processor, Message Count: {}, Handler List Size: {}", msgCount, handlerList.size());
-            MessageProcessor mp = handlerList.remove(handlerList.size() - 1);
-            mp.terminate();
-            log.trace("############# Now " + handlerList.size() + " processors");
+          } else if (target < handlerList.size()) {
+            while (handlerList.size() > target) {
+              log.info("Removing a Message Processor, Message Count: {}, Handler List Size: {}", msgCount, handlerList.size());
+              MessageProcessor mp = handlerList.remove(handlerList.size() - 1);
+              mp.terminate();
+              log.trace("############# Now " + handlerList.size() + " processors");
+            }
           } else {            
             if(noActionCycles >= queueSizeHeartbeatCount) {
               log.info("No action, Message Count: {}, Handler List Size: {}", msgCount, handlerList.size());
@@ -290,26 +1205,41 @@ public class MessageHandler {
             }            
           }
 
-          for (int i = 0; i < handlerList.size(); i++) {
+          for (int i = handlerList.size() - 1; i >= 0; i--) {
             MessageProcessor mp = handlerList.get(i);
             if (mp.isStopped()) {
               log.info("Removing stopped processor");
               handlerList.remove(i);
+              // Listener processors have no thread of their own to clean up
+              mp.terminate();
             }
           }
 
-          Thread.sleep(recheckPeriod);
+          waitForNextCheck(nextReconcile);
         } catch (InterruptedException | IllegalArgumentException e) {
-          log.error("Error in message handler", e);
+          if (running) {
+            log.error("Error in message handler", e);
+          }
         }
       }
+      log.info("Monitor stopped");
     } catch (Exception e) {
+      if (!running) {
+        log.info("Monitor stopped");
+        return;
+      }
       log.error("Error in message handler, stopping all message processor", e);
       for (int i = 0; i < handlerList.size(); i++) {
         MessageProcessor mp = handlerList.get(i);
         mp.terminate();
       }
       throw e;
+    } finally {
+      if (!running) {
+        // Catch processors started after terminate() took its snapshot
+        handlerList.forEach(MessageProcessor::drain);
+      }
+      monitorStopped.countDown();
     }
   }
 
@@ -323,6 +1253,32 @@ public class MessageHandler {
     mp.setPassword(password);
     mp.setRequestRetryThreshold(requestRetryThreshold);
     mp.setErrorMessageConvert(convertErrorMessage);
+    mp.setDeadLetterQueueName(deadLetterQueueName);
+    mp.setStatistics(statistics);
+    mp.setConnectionPool(connectionPool);
+    mp.setConsumptionMode(consumptionMode);
+    mp.setTransacted(transacted);
+    mp.setCommitSize(commitSize);
+    mp.setCommitInterval(commitInterval);
+    mp.setPrefetch(nextPrefetch());
+    mp.setSelector(selector);
+    if (delegateRegistry != null) {
+      ((TypeDelegatingMessageProcessor) mp).setDelegateRegistry(delegateRegistry);
+    }
+    mp.setConcurrency(concurrency);
+    mp.setOrderingKey(orderingKey);
+    mp.setConcurrencyLimiter(concurrencyLimiter);
+    mp.setBreakerThreshold(breakerThreshold);
+    mp.setBreakerCooldown(breakerCooldown);
+    mp.setRateLimiter(rateLimiter);
+    mp.setTypeRateLimiters(typeRateLimiters);
+    mp.setRetryPolicy(retryPolicy);
+    mp.setTypeRetryPolicies(typeRetryPolicies);
+    mp.setLocalRetryThreshold(retryLocalThreshold);
+    mp.setRetryTiers(retryTiers);
+    if (asyncWindow > 0) {
+      mp.setAsyncWindow(asyncWindow);
+    }
 
     mp.initialize();
     return mp;
@@ -57,6 +57,22 @@ public class MessageHandlerFactory {
   @Inject
   @ConfigProperty(name = MessageHandler.ERROR_TRANSPORT_TYPE_PROP_NAME)
   TransportType errorTransportType;
+
+  @Inject
+  @ConfigProperty(name = MessageHandler.MIN_PROCESSORS_PROP_NAME, defaultValue = "1")
+  int minProcessors = 1;
+
+  @Inject
+  @ConfigProperty(name = MessageHandler.MAX_PROCESSORS_PROP_NAME, defaultValue = "0")
+  int maxProcessors = 0;
+
+  @Inject
+  @ConfigProperty(name = MessageHandler.PROCESSOR_PROFILE_PROP_NAME, defaultValue = "CPU")
+  ProcessorProfile processorProfile = ProcessorProfile.CPU;
+
+  @Inject
+  @ConfigProperty(name = MessageHandler.CONSUMPTION_MODE_PROP_NAME, defaultValue = "POLL")
+  ConsumptionMode consumptionMode = ConsumptionMode.POLL;
   
   boolean loadFromProperties = false;
   
@@ -95,6 +111,26 @@ public class MessageHandlerFactory {
     return this;
   }
   
+  public MessageHandlerFactory setMinProcessors(int minProcessors) {
+    this.minProcessors = minProcessors;
+    return this;
+  }
+  
+  public MessageHandlerFactory setMaxProcessors(int maxProcessors) {
+    this.maxProcessors = maxProcessors;
+    return this;
+  }
+  
+  public MessageHandlerFactory setProcessorProfile(ProcessorProfile processorProfile) {
+    this.processorProfile = processorProfile;
+    return this;
+  }
+  
+  public MessageHandlerFactory setConsumptionMode(ConsumptionMode consumptionMode) {
+    this.consumptionMode = consumptionMode;
+    return this;
+  }
+  
   public MessageHandlerFactory isLoadFromProperties(boolean loadFromProperties){
     this.loadFromProperties = loadFromProperties;
     return this;
@@ -108,6 +144,10 @@ public class MessageHandlerFactory {
     mh.setTransportName(transportName);
     mh.setUsername(username);
     mh.setPassword(password);
+    mh.setMinProcessors(minProcessors);
+    mh.setMaxProcessors(maxProcessors);
+    mh.setProcessorProfile(processorProfile);
+    mh.setConsumptionMode(consumptionMode);
     mh.setLoadFromProperties(loadFromProperties);
     
     mh.init();
@@ -1,7 +1,5 @@
 package edu.psu.activemq;
 
-import java.io.IOException;
-
 /*
  * Copyright (c) 2018 by The Pennsylvania State University
  * 
@@ -19,80 +17,49 @@ import java.io.IOException;
  * under the License.
  */
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.util.stream.Stream;
-
-import javax.jms.Connection;
-import javax.jms.Destination;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
 import javax.jms.JMSException;
 import javax.jms.Message;
-import javax.jms.MessageProducer;
-import javax.jms.Queue;
-import javax.jms.Session;
-import javax.jms.TextMessage;
-
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.AnnotationIntrospector;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.introspect.AnnotationIntrospectorPair;
-import com.fasterxml.jackson.databind.introspect.JacksonAnnotationIntrospector;
-import com.fasterxml.jackson.module.jaxb.JaxbAnnotationIntrospector;
-
-import org.apache.activemq.ActiveMQConnection;
-import org.apache.activemq.ActiveMQMessageConsumer;
-import org.apache.activemq.ActiveMQMessageProducer;
-import org.apache.activemq.RedeliveryPolicy;
-import org.apache.activemq.ScheduledMessage;
+import javax.jms.StreamMessage;
+
 import org.apache.activemq.command.ActiveMQMessage;
-import org.apache.activemq.command.ActiveMQQueue;
-import org.slf4j.MDC;
 
-import edu.psu.activemq.data.ErrorMessage;
+import edu.psu.activemq.exception.CircuitOpenException;
 import edu.psu.activemq.exception.UnableToProcessMessageException;
-import edu.psu.activemq.exception.UnableToProcessMessageException.RetryStyle;
 import edu.psu.activemq.util.PropertyUtil;
 import edu.psu.activemq.util.RetryExceptionUtil;
 import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 @Data
-public abstract class MessageProcessor {
-
-  public static final String AMQ_JOB_ID_PROP_NAME = "scheduledJobId";
-  public static final String DELIVERY_COUNT_PROP_NAME = "swe-delivery-count";
-  public static final String UNIQUE_ID_MDC_KEY = "uniqueId";
-  public static final String CORRELATION_ID_MDC_KEY = "correlationId";
+@EqualsAndHashCode(callSuper = true)
+public abstract class MessageProcessor extends MessageEndpoint {
 
   public static final String SHOULDDELAYMESSAGE_PROP_NAME = "shoulddelay.feature";
   public static final String SHOULDDELAYRETRYTHRESHOLDINCREASEAMOUNT_PROP_NAME = "shoulddelay.retrythreshold.increaseamount";
   public static final String SHOULDDELAYRETRYWAIT_PROP_NAME = "shoulddelay.retry.wait";
 
-  @Getter(value = AccessLevel.NONE)
-  @Setter(value = AccessLevel.NONE)
-  boolean process = true;
-
-  @Getter(value = AccessLevel.NONE)
-  @Setter(value = AccessLevel.NONE)
-  boolean stopped = false;
-
-  String brokerUrl = null;
-  String transportName = null;
-  String errorTransportName = null;
-  TransportType errorTransportType = null;
-  String username;
-  String password;
-  int requestRetryThreshold;
-  boolean errorMessageConvert = false;
-
-  ActiveMQMessageConsumer consumer = null;
-  ActiveMQMessageProducer producer = null;
-  MessageProducer errorProducer = null;
-  Session errorSession;
+  // Resolution of local retries, in milliseconds
+  static final long LOCAL_RETRY_TICK = 10;
 
   String configShouldDelayMessage;
   String configShouldDelayRetryThresholdIncreaseAmount;
@@ -109,16 +76,99 @@ public abstract class MessageProcessor {
   Integer shouldDelayRetryWait = null; // null not set need to lookup config, >0
   // set
 
-  ObjectMapper objectMapper = new ObjectMapper();
+  // Shared with the other processors of the handler
+  ProcessorStatistics statistics = new ProcessorStatistics();
+
+  // POLL receives on a thread of our own, LISTENER is dispatched by the session
+  ConsumptionMode consumptionMode = ConsumptionMode.POLL;
+
+  // Messages handled at once, each on a thread of its own and acknowledged
+  // individually
+  int concurrency = 1;
+
+  // When above 0, handleMessageAsync is started on the receiving thread for
+  // up to this many messages at once, instead of using worker threads
+  int asyncWindow = 0;
+
+  // Shared with the other processors of the handler, null when unlimited
+  ConcurrencyLimiter concurrencyLimiter = null;
+
+  // Messages taken per second, shared with the other processors of the
+  // handler, null when unlimited
+  TokenBucket rateLimiter = null;
+
+  // Rate limits by processor key, applied by TypeDelegatingMessageProcessor
+  Map<String, TokenBucket> typeRateLimiters = Collections.emptyMap();
+
+  // Retry policy names by processor key, applied by
+  // TypeDelegatingMessageProcessor
+  Map<String, String> typeRetryPolicies = Collections.emptyMap();
+
+  // Retries waiting less than this many milliseconds are held unacknowledged
+  // and handled again by this processor, instead of going through the
+  // broker's scheduler.  0 sends every retry to the broker
+  long localRetryThreshold = 0;
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  TimingWheel<Message> localRetries = null;
+
+  // Local retries that came due, handled before new messages
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  final Deque<Message> dueRetries = new ArrayDeque<>();
+
+  // When set, concurrent messages with the same key are handled in order
+  OrderingKey orderingKey = null;
+
+  // Retries in a row that stop consumption for breakerCooldown
+  // milliseconds, 0 never stops
+  int breakerThreshold = 0;
+  long breakerCooldown = 30000;
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  CircuitBreaker circuitBreaker = null;
+
+  // Received messages not yet acknowledged, in order, when ordered
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  Deque<Message> unacknowledged = null;
+
+  // Messages settled ahead of earlier ones, and whether to acknowledge them
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  Map<Message, Boolean> settledEarly = null;
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  Executor[] lanes = null;
+
+  @Getter(value = AccessLevel.NONE)
+  @Setter(value = AccessLevel.NONE)
+  int nextLane = 0;
 
   protected abstract void handleMessage(Message message) throws UnableToProcessMessageException;
 
-  public MessageProcessor() {
-    AnnotationIntrospector jaxbIntrospector = new JaxbAnnotationIntrospector(objectMapper.getTypeFactory());
-    AnnotationIntrospector jacksonIntrospector = new JacksonAnnotationIntrospector();
-    AnnotationIntrospector pair = new AnnotationIntrospectorPair(jacksonIntrospector, jaxbIntrospector);
-    objectMapper.setAnnotationIntrospector(pair);
+  /**
+   * Starts handling a message without blocking, used when
+   * <code>asyncWindow</code> is set.  The message is acknowledged when the
+   * stage completes, a stage failing with an
+   * {@link UnableToProcessMessageException} is retried as usual.  By default
+   * the message is handled synchronously by {@link #handleMessage(Message)}.
+   */
+  protected CompletionStage<Void> handleMessageAsync(Message message) {
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    try {
+      handleMessage(message);
+      result.complete(null);
+    } catch (Exception e) {
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
 
+  public MessageProcessor() {
     configShouldDelayMessage = PropertyUtil.getProperty(MessageProcessor.SHOULDDELAYMESSAGE_PROP_NAME);
     configShouldDelayRetryThresholdIncreaseAmount = PropertyUtil.getProperty(MessageProcessor.SHOULDDELAYRETRYTHRESHOLDINCREASEAMOUNT_PROP_NAME);
     ConfigShouldDelayRetryWait = PropertyUtil.getProperty(MessageProcessor.SHOULDDELAYRETRYWAIT_PROP_NAME);
@@ -146,324 +196,523 @@ public abstract class MessageProcessor {
     log.info("shouldDelayRetryThresholdIncreaseAmount:" + shouldDelayRetryThresholdIncreaseAmount);
   }
 
-  public void terminate() {
-    process = false;
-  }
-
   protected void initialize() {
     log.info("Initializing message processor...");
 
-    Thread t = new Thread(new Runnable() {
-      public void run() {
+    if (transacted && ConsumptionMode.LISTENER.equals(consumptionMode)) {
+      log.warn("A listener cannot commit while the queue is idle, polling so the commit interval is kept");
+      consumptionMode = ConsumptionMode.POLL;
+    }
 
-        ActiveMQConnection connection = null;
-        Connection errorConnection = null;
+    if (inFlightLimit() > 1 && (transacted || ConsumptionMode.LISTENER.equals(consumptionMode))) {
+      log.warn("Concurrent handling needs a polling, non transacted processor, handling one message at a time");
+      concurrency = 1;
+      asyncWindow = 0;
+    }
 
-        try {
-          try {
-            connection = (ActiveMQConnection) MessageHandler.buildActivemqConnection(brokerUrl, username, password);
+    if (breakerThreshold > 0) {
+      circuitBreaker = new CircuitBreaker(breakerThreshold, breakerCooldown);
+    }
 
-            RedeliveryPolicy rd = new RedeliveryPolicy();
-            rd.setMaximumRedeliveries(2);
-            connection.getRedeliveryPolicyMap()
-                      .put(new ActiveMQQueue(transportName), rd);
+    if (localRetryThreshold > 0) {
+      if (transacted || ConsumptionMode.LISTENER.equals(consumptionMode)) {
+        log.warn("Local retries need a polling, non transacted processor, sending retries to the broker");
+        localRetryThreshold = 0;
+      } else {
+        localRetries = new TimingWheel<>(LOCAL_RETRY_TICK, 64, nowMillis());
+      }
+    }
 
-            connection.start();
-            Session session = connection.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+    if (ConsumptionMode.LISTENER.equals(consumptionMode)) {
+      try {
+        openSessions();
+        consumer.setMessageListener(this::onMessage);
+      } catch (JMSException | RuntimeException e) {
+        log.error("Error registering message listener", e);
+        stopped = true;
+        closeSessions();
+        drained.complete(null);
+        throw new RuntimeException("Failed to initialize message listener");
+      }
+      return;
+    }
 
-            Queue destination = session.createQueue(transportName);
-            consumer = (ActiveMQMessageConsumer) session.createConsumer(destination);
-            // Used for re-queuing messages at the users requests
-            producer = (ActiveMQMessageProducer) session.createProducer(destination);
+    super.initialize();
+  }
 
-          } catch (JMSException e) {
-            log.info("Error creating message consumer", e);
-            stopped = true;
-            throw new RuntimeException("Failed to initialize processing queue");
-          }
+  @Override
+  void consume() {
+    if (inFlightLimit() > 1) {
+      receiveConcurrently();
+    } else {
+      receiveMessages();
+    }
+  }
 
-          if (errorTransportName != null) {
-            try {
-              errorConnection = MessageHandler.buildActivemqConnection(brokerUrl, username, password);
-              errorConnection.start();
-              errorSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-
-              Destination errorDestination = null;
-              if (TransportType.TOPIC.equals(errorTransportType)) {
-                errorDestination = errorSession.createTopic(errorTransportName);
-              } else {
-                errorDestination = errorSession.createQueue(errorTransportName);
-              }
-
-              errorProducer = errorSession.createProducer(errorDestination);
-            } catch (JMSException e) {
-              log.error("Error creating error producer", e);
-              stopped = true;
-              throw new RuntimeException("Failed to initialize the error endpoint");
-            }
+  @Override
+  void drainWithoutReceiver() {
+    if (!ConsumptionMode.LISTENER.equals(consumptionMode)) {
+      super.drainWithoutReceiver();
+      return;
+    }
+    // The message being dispatched finishes first
+    CompletableFuture.runAsync(() -> {
+      synchronized (dispatchLock) {
+        commitPending();
+        closeSessions();
+      }
+      drained.complete(null);
+    });
+  }
+
+  @Override
+  protected void receiveMessages() {
+    try {
+      Message message = null;
+      while (process) {
+        if (!admit(10000)) {
+          continue;
+        }
+        message = nextDueRetry();
+        if (message == null) {
+          message = receive(10000);
+        }
+        if (message == null) {
+          release();
+        }
+        synchronized (dispatchLock) {
+          Thread.interrupted();
+          if (message == null) {
+            commitIfDue();
+            continue;
           }
+          dispatch(message);
+        }
+      }
+      Thread.interrupted();
+      flushLocalRetries();
+      commitPending();
+      log.info("Stopping processor");
+    } catch (Exception e) {
+      stopped = true;
+      log.error("Processor exception processing message.", e);
 
-          try {
-            Message message = null;
-            while (process) {
-              message = consumer.receive(10000);
-              if (message == null) {
-                continue;
-              }
-              try {
-                // set unique id for logging
-                try {
-                  MDC.put(UNIQUE_ID_MDC_KEY, message.getJMSMessageID());
-                  MDC.put(CORRELATION_ID_MDC_KEY, message.getJMSCorrelationID());
-                } catch (IllegalArgumentException | JMSException e1) {
-                  log.error("Error setting MDC unique id", e1);
-                }
-
-                shouldDelayMessage(message);
-
-                handleMessage(message);
-                consumer.acknowledge();
-                log.debug("Acknowledge the message on the consumer");
-              } catch (UnableToProcessMessageException upme) {
-                handleUnableToProcessMessage(message, upme);
-                consumer.acknowledge();
-              } catch (Exception e) {
-                processFailureMessage(message, e);
-                consumer.acknowledge();
-              } finally {
-                // remove unique id for logging
-                try {
-                  MDC.remove(UNIQUE_ID_MDC_KEY);
-                  MDC.remove(CORRELATION_ID_MDC_KEY);
-                } catch (IllegalArgumentException e1) {
-                  log.error("Error remvoing MDC unique id");
-                }
-              }
-            }
-            log.info("Stopping processor");
-          } catch (Exception e) {
-            stopped = true;
-            log.error("Processor exception processing message.", e);
+      try {
+        rollback();
+      } catch (JMSException e1) {
+      }
+    }
+  }
 
-            try {
-              consumer.rollback();
-            } catch (JMSException e1) {
-            }
-          }
-        } finally {
-          try {
-            consumer.close();
-          } catch (Exception e) {
-          }
-          // close connection
-          try {
-            if (connection != null) {
-              log.info("Closing connection");
-              connection.close();
-            }
-          } catch (Exception e) {
-            log.warn("Error closing connection", e);
+  /**
+   * Receives on this thread and hands each message to a worker, or starts its
+   * asynchronous handling, up to {@link #inFlightLimit()} at once.  Outcomes
+   * come back to this thread, the only one using the session, to be
+   * acknowledged.
+   */
+  private void receiveConcurrently() {
+    ExecutorService executor = asyncWindow > 0 ? null : buildExecutor(concurrency);
+    if (orderingKey != null && executor != null) {
+      lanes = new Executor[concurrency];
+      for (int i = 0; i < lanes.length; i++) {
+        lanes[i] = new SerialExecutor(executor);
+      }
+      unacknowledged = new ArrayDeque<>();
+      settledEarly = new IdentityHashMap<>();
+    }
+    try {
+      while (process) {
+        if (inFlight >= inFlightLimit()) {
+          awaitOutcome(10000);
+          continue;
+        }
+        if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+          // Leave messages on the queue until the breaker lets a probe through
+          awaitOutcome(inFlight > 0 ? CONCURRENT_POLL_INTERVAL : breakerWait(10000));
+          continue;
+        }
+        long rateWait = rateLimiter != null ? rateLimiter.tryAcquire() : 0;
+        if (rateWait > 0) {
+          releaseProbe();
+          awaitOutcome(inFlight > 0 ? CONCURRENT_POLL_INTERVAL : Math.max(1, TimeUnit.NANOSECONDS.toMillis(rateWait)));
+          continue;
+        }
+        if (concurrencyLimiter != null && !concurrencyLimiter.tryAcquire()) {
+          // Downstream is saturated, check back shortly
+          releaseProbe();
+          releaseRate();
+          awaitOutcome(CONCURRENT_POLL_INTERVAL);
+          continue;
+        }
+        Message dueRetry = nextDueRetry();
+        // Poll briefly while handlers run, to settle them promptly
+        Message message = dueRetry != null ? dueRetry : receive(inFlight > 0 ? CONCURRENT_POLL_INTERVAL : 10000);
+        if (message == null) {
+          release();
+        }
+        if (message != null && executor == null) {
+          inFlight++;
+          startAsync(message);
+        } else if (message != null) {
+          inFlight++;
+          Executor worker = executor;
+          if (lanes != null) {
+            worker = lanes[laneOf(message)];
+            unacknowledged.add(message);
           }
-          // close error connection
-          try {
-            if (errorConnection != null) {
-              log.info("Closing error connection");
-              errorConnection.close();
+          worker.execute(() -> {
+            long started = System.nanoTime();
+            Exception failure;
+            try {
+              failure = handle(message);
+            } catch (Error e) {
+              failure = new RuntimeException(e);
             }
-          } catch (Exception e) {
-            log.warn("Error closing error connection", e);
-          }
+            outcomes.add(new Outcome(message, failure, System.nanoTime() - started));
+          });
         }
+        settleOutcomes();
       }
+      // Finish the messages in flight
+      Thread.interrupted();
+      while (inFlight > 0) {
+        awaitOutcome(10000);
+      }
+      flushLocalRetries();
+      log.info("Stopping processor");
+    } catch (Exception e) {
+      stopped = true;
+      log.error("Processor exception processing message.", e);
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+      }
+    }
+  }
+
+  private void startAsync(Message message) {
+    long started = System.nanoTime();
+    CompletionStage<Void> stage;
+    try {
+      putMdc(message);
+      shouldDelayMessage(message);
+      stage = handleMessageAsync(message);
+    } catch (Exception e) {
+      CompletableFuture<Void> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      stage = failed;
+    } finally {
+      removeMdc();
+    }
+    stage.whenComplete((result, t) -> {
+      long elapsed = System.nanoTime() - started;
+      statistics.recordMessage(elapsed, -1, inFlightLimit());
+      outcomes.add(new Outcome(message, unwrap(t), elapsed));
     });
-    t.start();
   }
 
-  // if we should Delay message and the retryCount is equal to one then we will
-  // create the exception with an intialoffset , enabled, and numberOfRetries
-  // added
-  private void shouldDelayMessage(Message message) {
-    if (shouldDelayMessage == true) {
-      int rc;
-      try {
-        rc = this.getRetryCount(message);
-      } catch (JMSException e) {
-        rc = 1;
+  static Exception unwrap(Throwable t) {
+    if (t instanceof CompletionException && t.getCause() != null) {
+      t = t.getCause();
+    }
+    if (t == null || t instanceof Exception) {
+      return (Exception) t;
+    }
+    return new RuntimeException(t);
+  }
+
+  /**
+   * @return the number of messages handled at once
+   */
+  int inFlightLimit() {
+    return asyncWindow > 0 ? asyncWindow : concurrency;
+  }
+
+  @Override
+  void settleOutcome(Outcome outcome) throws JMSException, IOException {
+    if (outcome == WAKE_UP) {
+      return;
+    }
+    inFlight--;
+    recordOutcome(outcome.getElapsedNanos(), outcome.getFailure());
+    if (unacknowledged == null) {
+      settle(outcome.getMessage(), outcome.getFailure());
+      return;
+    }
+    // Acknowledge only once every earlier message is done
+    settledEarly.put(outcome.getMessage(), route(outcome.getMessage(), outcome.getFailure()));
+    while (!unacknowledged.isEmpty() && settledEarly.containsKey(unacknowledged.peek())) {
+      Message message = unacknowledged.poll();
+      if (settledEarly.remove(message)) {
+        acknowledge(message);
       }
-      if (rc == 1) {
-        log.info("shouldDelay configured, forcing delay of initialoffset : " + shouldDelayRetryWait);
-        UnableToProcessMessageException re = new UnableToProcessMessageException("Configed to Delay First Notification");
-        re.setRetry(RetryExceptionUtil.DEFAULT_RETRY);
-        re.setInitialOffset(shouldDelayRetryWait);
-        re.setForceInitialOffsetDelay(true);
-        re.setNumberOfRetries(re.getNumberOfRetries() + shouldDelayRetryThresholdIncreaseAmount);
-        throw re;
+    }
+  }
+
+  /**
+   * @return the lane of the message, messages without a key are spread
+   *         evenly
+   */
+  int laneOf(Message message) {
+    String key = null;
+    try {
+      key = orderingKey.keyOf(message);
+    } catch (JMSException e) {
+      log.warn("Unable to read the ordering key", e);
+    }
+    if (key == null) {
+      nextLane = (nextLane + 1) % lanes.length;
+      return nextLane;
+    }
+    return (key.hashCode() & Integer.MAX_VALUE) % lanes.length;
+  }
+
+  /**
+   * @return virtual threads where the JVM has them, a fixed pool otherwise
+   */
+  static ExecutorService buildExecutor(int threads) {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                                              .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(threads);
+    }
+  }
+
+  private void onMessage(Message message) {
+    // Holding up the listener holds up the session's dispatch
+    while (!admit(1000)) {
+      if (!process) {
+        return;
+      }
+    }
+    synchronized (dispatchLock) {
+      // Left unacknowledged, the broker redelivers it once the session closes
+      if (!process || stopped) {
+        release();
+        return;
+      }
+      try {
+        dispatch(message);
+      } catch (Exception e) {
+        // The session cannot be closed from its own listener, the handler
+        // terminates stopped processors
+        stopped = true;
+        log.error("Processor exception processing message.", e);
       }
     }
   }
 
-  private void handleUnableToProcessMessage(Message message, UnableToProcessMessageException upme) throws JMSException, IOException {
-    if (UnableToProcessMessageException.HandleAction.RETRY.equals(upme.getHandleAction())) {
-      if (shouldRetry(message, upme)) {
-        ActiveMQMessage msg = produceRetryMessage(message, upme);
-        log.warn("Failure processing message: " + upme.getMessage(), upme);
-        log.info("Retry count less than threshold, increment count and requeue, with delay time of " + msg.getStringProperty(ScheduledMessage.AMQ_SCHEDULED_DELAY));
-        // send message back to queue with greater retry count
-        producer.send(msg);
-      } else {
-        log.info("Retry count greater than threshold, process failure message");
-        processFailureMessage(message, upme);
+  private void dispatch(Message message) throws JMSException, IOException {
+    long started = System.nanoTime();
+    Exception failure = handle(message);
+    recordOutcome(System.nanoTime() - started, failure);
+    settle(message, failure);
+  }
+
+  /**
+   * Waits for the circuit breaker, the rate limiter and the concurrency
+   * limiter to let another message in, before it is taken off the queue.  It
+   * must then be followed by
+   * {@link #recordOutcome(long, Exception)} or {@link #release()}.
+   *
+   * @return false if either did not in time, or the wait was cut short by
+   *         {@link #drain()}
+   */
+  boolean admit(long timeout) {
+    boolean wakeable = enterWait();
+    try {
+      if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+        Thread.sleep(breakerWait(timeout));
+        return false;
+      }
+      if (rateLimiter != null && !rateLimiter.acquire(timeout)) {
+        releaseProbe();
+        return false;
+      }
+      if (concurrencyLimiter != null && !concurrencyLimiter.acquire(timeout)) {
+        releaseProbe();
+        releaseRate();
+        return false;
+      }
+      return true;
+    } catch (InterruptedException e) {
+      releaseProbe();
+      return false;
+    } finally {
+      if (wakeable) {
+        exitWait();
       }
-    } else if (UnableToProcessMessageException.HandleAction.DROP.equals(upme.getHandleAction())) {
-      log.info("Dropping message {}", message.getJMSMessageID());
-    } else {
-      processFailureMessage(message, upme);
     }
   }
 
-  public int getRetryCount(Message message) throws JMSException {
-    log.debug("Getting retry count");
-    int retryCount = 1; // must be GT 0 to allow retryCalculationDelay to work
-    String retryCountString = message.getStringProperty(DELIVERY_COUNT_PROP_NAME);
-    if (retryCountString != null) {
-      retryCount = Integer.parseInt(retryCountString);
+  private long breakerWait(long timeout) {
+    long remaining = circuitBreaker.getRemainingMillis();
+    return Math.min(timeout, remaining > 0 ? remaining : CONCURRENT_POLL_INTERVAL);
+  }
+
+  private void releaseProbe() {
+    if (circuitBreaker != null) {
+      circuitBreaker.release();
     }
-    return retryCount;
   }
 
-  public boolean shouldRetry(Message message, UnableToProcessMessageException upme) throws JMSException {
-    int retryCount = getRetryCount(message);
-    int retryThreshold = requestRetryThreshold;
-    // allow exception to pass in number of retries
-    if (upme.getNumberOfRetries() != null) {
-      retryThreshold = upme.getNumberOfRetries();
+  private void releaseRate() {
+    if (rateLimiter != null) {
+      rateLimiter.release();
     }
-    log.debug("Current count: {}, Threshold: {}", String.valueOf(retryCount), String.valueOf(retryThreshold));
-    return (retryCount <= retryThreshold) ? true : false;
   }
 
-  public ActiveMQMessage produceRetryMessage(Message message, UnableToProcessMessageException upme) throws JMSException, IOException {
-    int retryCount = getRetryCount(message);
-    ActiveMQMessage msg = (ActiveMQMessage) message;
-    msg.setReadOnlyProperties(false);
-    long retryWait = calculateRetryWait(retryCount, upme);
-    msg.setLongProperty(ScheduledMessage.AMQ_SCHEDULED_DELAY, retryWait);
-    // null out AMQ scheduledJobId or will only work on first
-    // re-delivery
-    msg.setProperty(AMQ_JOB_ID_PROP_NAME, null);
-    msg.setIntProperty(DELIVERY_COUNT_PROP_NAME, ++retryCount);
+  /**
+   * Gives back what {@link #admit(long)} took when no message came.
+   */
+  void release() {
+    releaseProbe();
+    releaseRate();
+    if (concurrencyLimiter != null) {
+      concurrencyLimiter.release();
+    }
+  }
 
-    if (msg.getJMSCorrelationID() == null || msg.getJMSCorrelationID()
-                                                .equals("")) {
-      msg.setJMSCorrelationID(msg.getJMSMessageID());
+  void recordOutcome(long elapsedNanos, Exception failure) {
+    boolean retry = isRetry(failure);
+    if (concurrencyLimiter != null) {
+      concurrencyLimiter.release(elapsedNanos, retry);
     }
+    if (circuitBreaker != null) {
+      if (retry) {
+        circuitBreaker.recordRetry();
+      } else {
+        circuitBreaker.recordSuccess();
+      }
+    }
+  }
 
-    return msg;
+  /**
+   * @return true if the handler sent the message back for a retry, because
+   *         something it depends on is struggling
+   */
+  static boolean isRetry(Exception failure) {
+    return failure instanceof UnableToProcessMessageException && !(failure instanceof CircuitOpenException)
+        && UnableToProcessMessageException.HandleAction.RETRY.equals(((UnableToProcessMessageException) failure).getHandleAction());
   }
 
-  /*
-   * long calculateRetryWait(int retryCount, UnableToProcessMessageException
-   * upme) if UnableToProcessMessageException.ForceRetryWaitDelay is set as GT
-   * 0, then that value is used for the retryWait used for when systems are down
-   * and tell us when they'll be back online (ie. workday)
+  /**
+   * Runs the handler, safe to call from any thread.
+   *
+   * @return the failure, or null if the message was handled
    */
-  public long calculateRetryWait(int retryCount, UnableToProcessMessageException upme) {
-    // Assume linear
-    long retryWait = upme.getRetryWait();
+  Exception handle(Message message) {
+    long started = System.nanoTime();
+    long startedCpu = ProcessorStatistics.currentThreadCpuNanos();
+    try {
+      putMdc(message);
+
+      shouldDelayMessage(message);
+
+      handleMessage(message);
+      return null;
+    } catch (Exception e) {
+      return e;
+    } finally {
+      long elapsedCpu = startedCpu < 0 ? -1 : ProcessorStatistics.currentThreadCpuNanos() - startedCpu;
+      statistics.recordMessage(System.nanoTime() - started, elapsedCpu, inFlightLimit());
+      removeMdc();
+    }
+  }
 
-    Integer initialOffset = upme.getInitialOffset();
-    if (initialOffset == null) {
-      initialOffset = 0;
+  @Override
+  boolean acknowledgesIndividually() {
+    return inFlightLimit() > 1 || localRetries != null;
+  }
+
+  static long nowMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+  }
+
+  /**
+   * @return a local retry that came due, or null if there is none
+   */
+  Message nextDueRetry() {
+    if (localRetries == null) {
+      return null;
     }
+    localRetries.advance(nowMillis(), dueRetries::add);
+    return dueRetries.poll();
+  }
 
-    // force initial offset will retryWait that amount
-    if (upme.isForceInitialOffsetDelay()) {
-      return initialOffset.longValue();
+  /**
+   * Holds a short retry to be handled again by this processor.  It stays
+   * unacknowledged, so the broker redelivers it if the processor fails.
+   *
+   * @return false if the retry must go through the broker
+   */
+  @Override
+  boolean retryLocally(ActiveMQMessage message) throws JMSException {
+    if (localRetries == null || !process) {
+      return false;
     }
+    long retryWait = message.getLongProperty(RETRY_WAIT_PROP_NAME);
+    if (retryWait >= localRetryThreshold) {
+      return false;
+    }
+    log.info("Retrying locally, with delay time of {}", retryWait);
+    // The handler reads the body again from the start
+    if (message instanceof BytesMessage) {
+      ((BytesMessage) message).reset();
+    } else if (message instanceof StreamMessage) {
+      ((StreamMessage) message).reset();
+    }
+    if (!localRetries.add(message, nowMillis() + retryWait)) {
+      dueRetries.add(message);
+    }
+    return true;
+  }
 
-    if (retryCount == 1 && initialOffset > 0) {
-      retryWait = initialOffset.longValue();
-    } else if (upme.getRetryStyle()
-                   .equals(RetryStyle.EXPONENTIAL)) {
-      // if Expo, then calculate new retry value
-      Double newValue = Stream.iterate((double) upme.getRetryWait(), x -> (x * upme.getBackOffMultiplier()))
-                              .limit(retryCount)
-                              .skip(retryCount - 1)
-                              .findFirst()
-                              .get();
-      retryWait = newValue.longValue();
+  /**
+   * Sends the local retries still waiting through the broker's scheduler.
+   */
+  void flushLocalRetries() throws JMSException, IOException {
+    if (localRetries == null) {
+      return;
+    }
+    localRetries.clear(dueRetries::add);
+    Message message;
+    while ((message = dueRetries.poll()) != null) {
+      sendRetry((ActiveMQMessage) message);
+      acknowledge(message);
     }
-    return retryWait;
+  }
 
+  @Override
+  long receiveTimeout(long timeout) {
+    if (localRetries != null && !localRetries.isEmpty()) {
+      // Wake up in time for the next local retry
+      timeout = Math.min(timeout, LOCAL_RETRY_TICK);
+    }
+    return super.receiveTimeout(timeout);
   }
 
-  private void processFailureMessage(Message message, Exception e) {
-    log.error("Failure processing message: " + e.getMessage(), e);
-    if (errorProducer != null) {
-      log.info("Sending to error queue");
-      ActiveMQMessage msg = (ActiveMQMessage) message;
-      msg.setReadOnlyProperties(false);
+  // if we should Delay message and the retryCount is equal to one then we will
+  // create the exception with an intialoffset , enabled, and numberOfRetries
+  // added
+  void shouldDelayMessage(Message message) {
+    if (shouldDelayMessage == true) {
+      int rc;
       try {
-        // convert to an error message object
-        if (errorMessageConvert) {
-          ErrorMessage em = new ErrorMessage();
-
-          if (e instanceof UnableToProcessMessageException) {
-            em.setShortDescription(((UnableToProcessMessageException) e).getShortDescription());
-            em.setSourceSystem(((UnableToProcessMessageException) e).getSourceSystem());
-          } else {
-            // Try to grab something for the short Message
-            String shortMessage = e.getMessage();
-            if (shortMessage != null) {
-              int shortMessageLength = shortMessage.length() > 256 ? 256 : shortMessage.length();
-              em.setShortDescription(e.getMessage()
-                                      .substring(0, shortMessageLength));
-            } else {
-              em.setShortDescription("Error: " + e.getClass()
-                                                  .getName());
-            }
-          }
-
-          em.setDescription(e.getMessage());
-          em.setStack(getStackTrace(e));
-          try {
-            TextMessage tm = errorSession.createTextMessage(objectMapper.writeValueAsString(em));
-            errorProducer.send(tm);
-            consumer.acknowledge();
-          } catch (JsonProcessingException e1) {
-            log.error("Unable to send message on error queue: " + em.toString());
-          }
-        }
-        // send original message with error headers
-        else {
-          msg.setStringProperty("error", e.getMessage());
-          msg.setStringProperty("errorStackTrace", getStackTrace(e));
-          errorProducer.send(msg);
-        }
-      } catch (JMSException e1) {
-        if (e instanceof UnableToProcessMessageException) {
-          UnableToProcessMessageException up = (UnableToProcessMessageException) e;
-          log.error("Unable to send message on error queue: {} {} {}", up.getShortDescription(), up.getSourceSystem(), up.getMessage());
-        }
-        log.error("Unable to send message on error queue: " + e.getMessage());
+        rc = this.getRetryCount(message);
+      } catch (JMSException e) {
+        rc = 1;
       }
-    } else {
-      try {
-        consumer.rollback();
-      } catch (JMSException e1) {
-        log.error("Error rolling back message", e1);
+      if (rc == 1) {
+        log.info("shouldDelay configured, forcing delay of initialoffset : " + shouldDelayRetryWait);
+        UnableToProcessMessageException re = new UnableToProcessMessageException("Configed to Delay First Notification");
+        re.setRetry(RetryExceptionUtil.DEFAULT_RETRY);
+        re.setInitialOffset(shouldDelayRetryWait);
+        re.setForceInitialOffsetDelay(true);
+        re.setNumberOfRetries(re.getNumberOfRetries() + shouldDelayRetryThresholdIncreaseAmount);
+        throw re;
       }
     }
   }
-
-  private String getStackTrace(Exception e) {
-    StringWriter sw = new StringWriter();
-    PrintWriter pw = new PrintWriter(sw);
-    e.printStackTrace(pw);
-    return sw.toString();
-  }
-
-  public boolean isStopped() {
-    return stopped;
-  }
 }
@@ -0,0 +1,174 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Publishes the messages of a queue as a Reactive Streams {@link Publisher}.
+ * Messages are only received while the subscriber has outstanding demand, so
+ * a slow subscriber throttles consumption from the broker (the consumer still
+ * buffers up to its prefetch).  Each {@link Delivery} is acknowledged
+ * individually when the subscriber settles it, retries and failures go
+ * through the same retry and error handling as a {@link MessageProcessor}.
+ * <p>
+ * A publisher takes the connection, retry and error settings of a processor
+ * and supports one subscriber.  Cancelling the subscription, or
+ * {@link #drain()}, stops consumption.
+ */
+@Slf4j
+public class MessagePublisher<T> extends MessageEndpoint implements Publisher<Delivery<T>> {
+
+  private final MessageReader<T> reader;
+  private final AtomicLong demand = new AtomicLong();
+  private final AtomicBoolean subscribed = new AtomicBoolean();
+  // Set once onComplete or onError has been signalled
+  private final AtomicBoolean terminated = new AtomicBoolean();
+  private volatile Subscriber<? super Delivery<T>> subscriber;
+  private volatile boolean cancelled = false;
+  private volatile IllegalArgumentException invalidRequest;
+
+  public MessagePublisher(MessageReader<T> reader) {
+    super();
+    this.reader = reader;
+  }
+
+  public static MessagePublisher<Message> ofMessages() {
+    return new MessagePublisher<>(message -> message);
+  }
+
+  @Override
+  public void subscribe(Subscriber<? super Delivery<T>> s) {
+    Objects.requireNonNull(s, "subscriber");
+    if (!subscribed.compareAndSet(false, true)) {
+      s.onSubscribe(new Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+      });
+      s.onError(new IllegalStateException("A message publisher supports a single subscriber"));
+      return;
+    }
+
+    subscriber = s;
+    s.onSubscribe(new Subscription() {
+      @Override
+      public void request(long n) {
+        if (n <= 0) {
+          invalidRequest = new IllegalArgumentException("Requested " + n + " deliveries, the request must be positive");
+        } else {
+          demand.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+        }
+        outcomes.add(WAKE_UP);
+      }
+
+      @Override
+      public void cancel() {
+        cancelled = true;
+        drain();
+      }
+    });
+    if (!cancelled) {
+      // Tell the subscriber if the publisher stops without a signal, e.g.
+      // when the sessions cannot be opened
+      drained.thenRun(() -> signalError(new IllegalStateException("Message publisher stopped")));
+      initialize();
+    }
+  }
+
+  // Deliveries are settled in any order, on the receiving thread
+  @Override
+  boolean acknowledgesIndividually() {
+    return true;
+  }
+
+  void settleLater(Message message, Exception failure) {
+    outcomes.add(new Outcome(message, failure, 0));
+  }
+
+  @Override
+  protected void receiveMessages() {
+    try {
+      while (process) {
+        if (invalidRequest != null) {
+          throw invalidRequest;
+        }
+        if (demand.get() == 0) {
+          awaitOutcome(10000);
+          continue;
+        }
+        Message message = receive(inFlight > 0 ? CONCURRENT_POLL_INTERVAL : 10000);
+        settleOutcomes();
+        if (message != null) {
+          publish(message);
+        }
+      }
+      Thread.interrupted();
+      settleOutcomes();
+      log.info("Stopping publisher");
+      if (!cancelled && terminated.compareAndSet(false, true)) {
+        subscriber.onComplete();
+      }
+    } catch (Exception e) {
+      stopped = true;
+      log.error("Publisher exception receiving message.", e);
+      signalError(e);
+    }
+  }
+
+  private void signalError(Throwable t) {
+    if (!cancelled && terminated.compareAndSet(false, true)) {
+      subscriber.onError(t);
+    }
+  }
+
+  private void publish(Message message) throws JMSException, IOException {
+    T payload;
+    try {
+      payload = reader.read(message);
+    } catch (Exception e) {
+      synchronized (dispatchLock) {
+        Thread.interrupted();
+        settle(message, e);
+      }
+      return;
+    }
+
+    inFlight++;
+    if (demand.get() != Long.MAX_VALUE) {
+      demand.decrementAndGet();
+    }
+    subscriber.onNext(new Delivery<>(message, payload, this));
+  }
+}
@@ -0,0 +1,49 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * The message attribute that keeps messages in order when a processor
+ * handles several at once.  Messages with the same key are handled one after
+ * the other, messages without one in any order.
+ */
+public enum OrderingKey {
+  GROUP_ID {
+    @Override
+    String keyOf(Message message) throws JMSException {
+      return message.getStringProperty("JMSXGroupID");
+    }
+  },
+  CORRELATION_ID {
+    @Override
+    String keyOf(Message message) throws JMSException {
+      return message.getJMSCorrelationID();
+    }
+  },
+  PROCESSOR_KEY {
+    @Override
+    String keyOf(Message message) throws JMSException {
+      return message.getStringProperty(TypeDelegatingMessageProcessor.KEY_PROPERTY);
+    }
+  };
+
+  abstract String keyOf(Message message) throws JMSException;
+}
@@ -0,0 +1,93 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals shared by all the processors of a {@link MessageHandler}.
+ * The totals never decrease, so a sampler can take differences between two
+ * readings even when processors come and go in between.
+ */
+public class ProcessorStatistics {
+
+  private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+  private final AtomicLong completedMessages = new AtomicLong();
+  private final AtomicLong busyNanos = new AtomicLong();
+  private final AtomicLong cpuNanos = new AtomicLong();
+  // Busy time of the messages whose CPU time was measured
+  private final AtomicLong cpuBusyNanos = new AtomicLong();
+
+  /**
+   * @return the CPU time of the calling thread, or -1 if the JVM does not
+   *         measure it
+   */
+  public static long currentThreadCpuNanos() {
+    if (!THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()) {
+      return -1;
+    }
+    return THREAD_MX_BEAN.getCurrentThreadCpuTime();
+  }
+
+  public void recordMessage(long elapsedNanos, long elapsedCpuNanos) {
+    recordMessages(1, elapsedNanos, elapsedCpuNanos, 1);
+  }
+
+  public void recordMessage(long elapsedNanos, long elapsedCpuNanos, int slots) {
+    recordMessages(1, elapsedNanos, elapsedCpuNanos, slots);
+  }
+
+  public void recordMessages(int count, long elapsedNanos, long elapsedCpuNanos) {
+    recordMessages(count, elapsedNanos, elapsedCpuNanos, 1);
+  }
+
+  /**
+   * @param slots messages the processor handles at once, their elapsed times
+   *          overlap so each is counted as its share of the processor's time
+   * @param elapsedCpuNanos -1 if not measured, the busy time is then left out
+   *          of the CPU totals
+   */
+  public void recordMessages(int count, long elapsedNanos, long elapsedCpuNanos, int slots) {
+    long processorNanos = elapsedNanos / Math.max(1, slots);
+    completedMessages.addAndGet(count);
+    busyNanos.addAndGet(processorNanos);
+    if (elapsedCpuNanos >= 0) {
+      cpuBusyNanos.addAndGet(processorNanos);
+      cpuNanos.addAndGet(elapsedCpuNanos);
+    }
+  }
+
+  public long getCompletedMessages() {
+    return completedMessages.get();
+  }
+
+  public long getBusyNanos() {
+    return busyNanos.get();
+  }
+
+  public long getCpuNanos() {
+    return cpuNanos.get();
+  }
+
+  public long getCpuBusyNanos() {
+    return cpuBusyNanos.get();
+  }
+}
@@ -0,0 +1,45 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import javax.jms.JMSException;
+
+/**
+ * Reports the number of messages waiting on a queue so the
+ * {@link MessageHandler} can decide how many processors to run.
+ */
+public interface QueueDepthProbe {
+
+  public enum Type {
+    STATISTICS, BROWSER
+  }
+
+  long getQueueDepth() throws JMSException;
+
+  /**
+   * @return true if the last depth stopped counting at a cap, so the queue
+   *         holds at least that many messages
+   */
+  default boolean isLowerBound() {
+    return false;
+  }
+
+  default void close() {
+    //Default implementation so it is not required to implement
+  }
+}
@@ -0,0 +1,159 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Sizes the processor pool from measured rates instead of a fixed threshold.
+ * <p>
+ * Between two samples the policy measures the drain rate (messages finished
+ * per second), the arrival rate (growth of the queue plus the drain rate) and
+ * the capacity of a single processor (messages finished per second of handler
+ * time).  It then asks for enough processors to keep up with the arrivals and
+ * work off the backlog within <code>targetDrainTime</code>, in as many steps
+ * as needed.
+ * <p>
+ * Scaling in is damped: a processor is only removed when the remaining ones
+ * would still have <code>hysteresis</code> headroom, and not within
+ * <code>scaleInCooldown</code> of the last change, and never while the backlog
+ * would take longer than <code>targetDrainTime</code> to drain at the measured
+ * rate.
+ */
+@Slf4j
+public class RateBasedScalingPolicy implements ScalingPolicy {
+
+  // Milliseconds the backlog should take to drain
+  @Getter
+  @Setter
+  long targetDrainTime = 30000;
+
+  @Getter
+  @Setter
+  int maxScaleOutStep = Integer.MAX_VALUE;
+
+  @Getter
+  @Setter
+  int maxScaleInStep = 1;
+
+  @Getter
+  @Setter
+  long scaleOutCooldown = 0;
+
+  @Getter
+  @Setter
+  long scaleInCooldown = 60000;
+
+  // Fraction of capacity that must stay unused after scaling in
+  @Getter
+  @Setter
+  double hysteresis = 0.2;
+
+  // Weight of the newest sample in the moving averages
+  @Getter
+  @Setter
+  double smoothing = 0.5;
+
+  private ScalingContext previous;
+  private double arrivalRate = -1;
+  private double processorRate = -1;
+  private long lastScaleOut;
+  private long lastChange;
+
+  @Override
+  public int targetProcessorCount(ScalingContext context) {
+    int current = context.getCurrentProcessors();
+    ScalingContext last = previous;
+    previous = context;
+
+    if (current == 0) {
+      return 1;
+    }
+    if (last == null) {
+      return current;
+    }
+
+    double seconds = (context.getTimestamp() - last.getTimestamp()) / 1000.0;
+    if (seconds <= 0) {
+      return current;
+    }
+
+    long completed = context.getCompletedMessages() - last.getCompletedMessages();
+    long busyNanos = context.getBusyNanos() - last.getBusyNanos();
+    double drainRate = completed / seconds;
+    if (completed > 0 && busyNanos > 0) {
+      processorRate = smooth(processorRate, completed / (busyNanos / 1e9));
+    }
+    arrivalRate = smooth(arrivalRate, Math.max(0, (context.getQueueDepth() - last.getQueueDepth()) / seconds + drainRate));
+
+    long depth = context.getQueueDepth();
+    if (processorRate <= 0) {
+      // Nothing finished yet, grow one at a time while messages wait
+      return depth > 0 ? scaleOut(context, current + 1) : current;
+    }
+
+    double required = arrivalRate + depth / (targetDrainTime / 1000.0);
+    int target = (int) Math.ceil(required / processorRate);
+    double backlogAge = drainRate > 0 ? depth / drainRate : (depth > 0 ? Double.POSITIVE_INFINITY : 0);
+    log.debug("Arrival rate: {}/s, Processor rate: {}/s, Backlog age: {} s, Target: {}", arrivalRate, processorRate, backlogAge, target);
+
+    if (target > current) {
+      return scaleOut(context, target);
+    }
+    if (target < current) {
+      return scaleIn(context, target, required, backlogAge);
+    }
+    return current;
+  }
+
+  private int scaleOut(ScalingContext context, int target) {
+    int current = context.getCurrentProcessors();
+    target = Math.min(target, context.getMaxProcessors());
+    if (target - current > maxScaleOutStep) {
+      target = current + maxScaleOutStep;
+    }
+    if (target <= current || context.getTimestamp() - lastScaleOut < scaleOutCooldown) {
+      return current;
+    }
+    lastScaleOut = context.getTimestamp();
+    lastChange = lastScaleOut;
+    return target;
+  }
+
+  private int scaleIn(ScalingContext context, int target, double required, double backlogAge) {
+    int current = context.getCurrentProcessors();
+    if (required > (current - 1) * processorRate * (1 - hysteresis)) {
+      return current;
+    }
+    // The measured drain rate has the last word over the estimated capacity
+    if (backlogAge * 1000 > targetDrainTime) {
+      return current;
+    }
+    if (context.getTimestamp() - lastChange < scaleInCooldown) {
+      return current;
+    }
+    lastChange = context.getTimestamp();
+    return Math.max(Math.max(target, 1), current - maxScaleInStep);
+  }
+
+  private double smooth(double average, double sample) {
+    return average < 0 ? sample : smoothing * sample + (1 - smoothing) * average;
+  }
+}
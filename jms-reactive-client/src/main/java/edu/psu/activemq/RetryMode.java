@@ -0,0 +1,28 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * How a retry waits before it is redelivered.  SCHEDULER sends it back with
+ * <code>AMQ_SCHEDULED_DELAY</code>, which needs the broker's scheduler
+ * support.  TIERED sends it to one of a fixed set of delay queues, from which
+ * the handler moves it back once due.
+ */
+public enum RetryMode {
+  SCHEDULER, TIERED
+}
@@ -0,0 +1,55 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of named retry policies, shared by every handler in the JVM.
+ */
+public class RetryPolicies {
+
+  // Back off as the exception asks, without jitter, a cap or a deadline
+  public static final String DEFAULT = "default";
+  public static final String FULL_JITTER = "full-jitter";
+  public static final String DECORRELATED_JITTER = "decorrelated-jitter";
+
+  private static final Map<String, RetryPolicy> POLICIES = new ConcurrentHashMap<>();
+
+  static {
+    register(DEFAULT, new BackoffRetryPolicy());
+    register(FULL_JITTER, new BackoffRetryPolicy().setJitter(BackoffRetryPolicy.Jitter.FULL));
+    register(DECORRELATED_JITTER, new BackoffRetryPolicy().setJitter(BackoffRetryPolicy.Jitter.DECORRELATED));
+  }
+
+  private RetryPolicies() {
+
+  }
+
+  public static void register(String name, RetryPolicy policy) {
+    POLICIES.put(name, policy);
+  }
+
+  /**
+   * @return the policy, or null if none has the name
+   */
+  public static RetryPolicy get(String name) {
+    return POLICIES.get(name);
+  }
+}
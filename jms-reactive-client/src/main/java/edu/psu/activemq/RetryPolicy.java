@@ -0,0 +1,39 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import edu.psu.activemq.exception.UnableToProcessMessageException;
+
+/**
+ * Decides how long a message sent back for a retry waits before it is
+ * redelivered.  Policies are registered by name with {@link RetryPolicies}
+ * and chosen per handler, per type key or by the exception itself.
+ */
+@FunctionalInterface
+public interface RetryPolicy {
+
+  /**
+   * @param retryCount 1 for the first retry
+   * @param previousWait milliseconds waited before the failed attempt, 0 if
+   *          it was the first
+   * @param elapsed milliseconds since the message was first attempted
+   * @return milliseconds to wait, or a negative value to stop retrying and
+   *         treat the message as failed
+   */
+  long retryWait(int retryCount, long previousWait, long elapsed, UnableToProcessMessageException upme);
+}
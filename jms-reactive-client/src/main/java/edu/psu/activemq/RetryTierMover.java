@@ -0,0 +1,137 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnection;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Moves the messages of one retry tier on once they have waited the tier's
+ * delay: back to the queue when they are due, otherwise to the tier for the
+ * time left.  Each move is a local transaction, so a message is never lost or
+ * duplicated when the mover stops.
+ */
+@Slf4j
+class RetryTierMover implements Runnable {
+
+  private final SharedConnectionPool connectionPool;
+  private final String transportName;
+  private final RetryTiers tiers;
+  private final long delay;
+
+  private volatile boolean running = true;
+  private volatile Thread thread;
+
+  RetryTierMover(SharedConnectionPool connectionPool, String transportName, RetryTiers tiers, long delay) {
+    this.connectionPool = connectionPool;
+    this.transportName = transportName;
+    this.tiers = tiers;
+    this.delay = delay;
+  }
+
+  void start() {
+    thread = new Thread(this, "retry-tier-" + RetryTiers.label(delay));
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void stop() {
+    running = false;
+    Thread t = thread;
+    if (t != null) {
+      t.interrupt();
+    }
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      ActiveMQConnection connection = null;
+      try {
+        connection = connectionPool.acquire();
+        move(connection);
+      } catch (JMSException e) {
+        if (running) {
+          log.error("Error moving retries of tier {}", RetryTiers.label(delay), e);
+          pause();
+        }
+      } catch (InterruptedException e) {
+        // stopping, the message in hand is rolled back to the tier
+      } finally {
+        if (connection != null) {
+          connectionPool.release(connection);
+        }
+      }
+    }
+  }
+
+  private void move(ActiveMQConnection connection) throws JMSException, InterruptedException {
+    Session session = connection.createSession(true, Session.SESSION_TRANSACTED);
+    try {
+      // Hold one message at a time, the rest stay in order on the broker
+      MessageConsumer consumer = session.createConsumer(session.createQueue(tiers.queueName(transportName, delay) + "?consumer.prefetchSize=1"));
+      MessageProducer producer = session.createProducer(null);
+      Destination queue = session.createQueue(transportName);
+      while (running) {
+        Message message = consumer.receive(10000);
+        if (message == null) {
+          continue;
+        }
+        long wait = message.getJMSTimestamp() + delay - System.currentTimeMillis();
+        if (wait > 0) {
+          Thread.sleep(wait);
+        }
+
+        long remaining = 0;
+        if (message.propertyExists(MessageProcessor.RETRY_DUE_PROP_NAME)) {
+          remaining = message.getLongProperty(MessageProcessor.RETRY_DUE_PROP_NAME) - System.currentTimeMillis();
+        }
+        long tier = tiers.tierFor(remaining);
+        producer.send(tier > 0 ? session.createQueue(tiers.queueName(transportName, tier)) : queue, message);
+        session.commit();
+      }
+    } catch (JMSException e) {
+      // receive fails when interrupted to stop
+      if (running) {
+        throw e;
+      }
+    } finally {
+      try {
+        session.close();
+      } catch (JMSException e) {
+        log.warn("Error closing retry tier session", e);
+      }
+    }
+  }
+
+  private void pause() {
+    try {
+      Thread.sleep(5000);
+    } catch (InterruptedException e) {
+      // stopping
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * The delays of the retry tier queues of a queue, named
+ * <code>&lt;queue&gt;.retry.&lt;delay&gt;</code>, e.g.
+ * <code>orders.retry.5s</code>.  Every message in a tier waits the same time,
+ * so a tier is consumed in order and only its oldest message needs watching.
+ */
+public class RetryTiers {
+
+  private final long[] delays;
+
+  public RetryTiers(long... delays) {
+    if (delays.length == 0 || Arrays.stream(delays)
+                                     .anyMatch(d -> d <= 0)) {
+      throw new IllegalArgumentException("Retry tiers must be positive delays");
+    }
+    this.delays = delays.clone();
+    Arrays.sort(this.delays);
+  }
+
+  public long[] getDelays() {
+    return delays.clone();
+  }
+
+  /**
+   * @return the longest tier no longer than the wait.  A wait shorter than
+   *         every tier is rounded to the nearest of the shortest tier and 0,
+   *         where 0 means no tier
+   */
+  public long tierFor(long wait) {
+    if (wait <= 0 || wait < delays[0] - wait) {
+      return 0;
+    }
+    long tier = delays[0];
+    for (long delay : delays) {
+      if (delay <= wait) {
+        tier = delay;
+      }
+    }
+    return tier;
+  }
+
+  public String queueName(String transportName, long delay) {
+    return transportName + ".retry." + label(delay);
+  }
+
+  static String label(long delay) {
+    if (delay % 3600000 == 0) {
+      return delay / 3600000 + "h";
+    }
+    if (delay % 60000 == 0) {
+      return delay / 60000 + "m";
+    }
+    if (delay % 1000 == 0) {
+      return delay / 1000 + "s";
+    }
+    return delay + "ms";
+  }
+}
@@ -0,0 +1,45 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * A sample of the handler's state handed to a {@link ScalingPolicy}.
+ */
+@Value
+@Builder
+public class ScalingContext {
+
+  // Milliseconds, when the sample was taken
+  long timestamp;
+
+  long queueDepth;
+
+  int currentProcessors;
+
+  int maxProcessors;
+
+  int messageThreshold;
+
+  // Running totals over all processors of the handler
+  long completedMessages;
+
+  long busyNanos;
+}
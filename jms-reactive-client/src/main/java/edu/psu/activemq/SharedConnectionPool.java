@@ -0,0 +1,143 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.jms.JMSException;
+
+import org.apache.activemq.ActiveMQConnection;
+import org.apache.activemq.RedeliveryPolicy;
+import org.apache.activemq.command.ActiveMQQueue;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A fixed number of broker connections shared by everything a
+ * {@link MessageHandler} runs.  Each user acquires a connection, creates its
+ * own sessions on it and releases it when done.  Connections are striped:
+ * acquire hands out the connection with the fewest users, so M sessions are
+ * spread over N sockets.  A connection is opened on first use and closed when
+ * its last user releases it.
+ */
+@Slf4j
+public class SharedConnectionPool {
+
+  private final String brokerUrl;
+  private final String username;
+  private final String password;
+  private final String transportName;
+  private final ActiveMQConnection[] connections;
+  private final Map<ActiveMQConnection, Integer> references = new IdentityHashMap<>();
+
+  public SharedConnectionPool(String brokerUrl, String username, String password, String transportName, int stripes) {
+    if (stripes < 1) {
+      throw new IllegalArgumentException("A connection pool needs at least one connection");
+    }
+    this.brokerUrl = brokerUrl;
+    this.username = username;
+    this.password = password;
+    this.transportName = transportName;
+    this.connections = new ActiveMQConnection[stripes];
+  }
+
+  public synchronized ActiveMQConnection acquire() throws JMSException {
+    int stripe = 0;
+    for (int i = 1; i < connections.length; i++) {
+      if (referenceCount(connections[i]) < referenceCount(connections[stripe])) {
+        stripe = i;
+      }
+    }
+
+    ActiveMQConnection connection = connections[stripe];
+    if (connection == null) {
+      log.info("Opening shared connection {} of {}", stripe + 1, connections.length);
+      connection = (ActiveMQConnection) MessageHandler.buildActivemqConnection(brokerUrl, username, password);
+
+      RedeliveryPolicy rd = new RedeliveryPolicy();
+      rd.setMaximumRedeliveries(MessageProcessor.MAX_REDELIVERIES);
+      connection.getRedeliveryPolicyMap()
+                .put(new ActiveMQQueue(transportName), rd);
+
+      ActiveMQConnection failed = connection;
+      connection.setExceptionListener(e -> {
+        log.warn("Shared connection failed", e);
+        invalidate(failed);
+      });
+
+      connection.start();
+      connections[stripe] = connection;
+    }
+
+    references.put(connection, referenceCount(connection) + 1);
+    return connection;
+  }
+
+  public synchronized void release(ActiveMQConnection connection) {
+    Integer count = references.get(connection);
+    if (count == null) {
+      return;
+    }
+    if (count > 1) {
+      references.put(connection, count - 1);
+      return;
+    }
+
+    references.remove(connection);
+    int stripe = indexOf(connection);
+    if (stripe >= 0) {
+      log.info("Closing shared connection {} of {}", stripe + 1, connections.length);
+      connections[stripe] = null;
+    }
+    try {
+      connection.close();
+    } catch (Exception e) {
+      log.warn("Error closing shared connection", e);
+    }
+  }
+
+  /*
+   * Stops handing out a failed connection.  Its current users see the failure
+   * on their own sessions, and the last one to release it closes it.
+   */
+  public synchronized void invalidate(ActiveMQConnection connection) {
+    int stripe = indexOf(connection);
+    if (stripe >= 0) {
+      connections[stripe] = null;
+    }
+  }
+
+  public synchronized int getOpenConnections() {
+    return references.size();
+  }
+
+  private int referenceCount(ActiveMQConnection connection) {
+    Integer count = connection == null ? null : references.get(connection);
+    return count == null ? 0 : count;
+  }
+
+  private int indexOf(ActiveMQConnection connection) {
+    for (int i = 0; i < connections.length; i++) {
+      if (connections[i] == connection) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,146 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.UUID;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Asks the broker's statistics plugin for the size of the queue.  The broker
+ * answers with a single map message, so the cost of a probe does not grow with
+ * the backlog.
+ * <p>
+ * If no answer arrives, because the plugin is not installed or the broker is
+ * slow, the fallback probe is used for a while before the plugin is asked
+ * again.  The wait doubles with every miss, up to an hour.
+ */
+@Slf4j
+public class StatisticsQueueDepthProbe implements QueueDepthProbe {
+
+  public static final String STATISTICS_DESTINATION_PREFIX = "ActiveMQ.Statistics.Destination.";
+  public static final String SIZE_KEY = "size";
+
+  static final long MIN_PLUGIN_RETRY_DELAY = 60000;
+  static final long MAX_PLUGIN_RETRY_DELAY = 3600000;
+
+  private final Connection connection;
+  private final String transportName;
+  private final long replyTimeout;
+  private final QueueDepthProbe fallback;
+
+  private Session session;
+  private MessageProducer producer;
+  private MessageConsumer consumer;
+  private TemporaryQueue replyQueue;
+
+  // Milliseconds to use the fallback after the next miss
+  long pluginRetryDelay = MIN_PLUGIN_RETRY_DELAY;
+  private long pluginRetryAt = 0;
+  private boolean fromFallback = false;
+
+  public StatisticsQueueDepthProbe(Connection connection, String transportName, long replyTimeout, QueueDepthProbe fallback) {
+    this.connection = connection;
+    this.transportName = transportName;
+    this.replyTimeout = replyTimeout;
+    this.fallback = fallback;
+  }
+
+  @Override
+  public long getQueueDepth() throws JMSException {
+    if (System.currentTimeMillis() < pluginRetryAt) {
+      fromFallback = true;
+      return fallback.getQueueDepth();
+    }
+
+    if (session == null) {
+      session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Queue statisticsDestination = session.createQueue(STATISTICS_DESTINATION_PREFIX + transportName);
+      replyQueue = session.createTemporaryQueue();
+      producer = session.createProducer(statisticsDestination);
+      producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+      // Without the plugin the request lands on a plain queue, make sure it
+      // does not linger there
+      producer.setTimeToLive(replyTimeout);
+      consumer = session.createConsumer(replyQueue);
+    }
+
+    String correlationId = UUID.randomUUID()
+                               .toString();
+    Message request = session.createMessage();
+    request.setJMSReplyTo(replyQueue);
+    request.setJMSCorrelationID(correlationId);
+    producer.send(request);
+
+    long deadline = System.currentTimeMillis() + replyTimeout;
+    long remaining = replyTimeout;
+    while (remaining > 0) {
+      Message reply = consumer.receive(remaining);
+      // Discard late answers to earlier requests
+      if (reply instanceof MapMessage && correlationId.equals(reply.getJMSCorrelationID())) {
+        pluginRetryDelay = MIN_PLUGIN_RETRY_DELAY;
+        fromFallback = false;
+        return ((MapMessage) reply).getLong(SIZE_KEY);
+      }
+      remaining = deadline - System.currentTimeMillis();
+    }
+
+    log.warn("No reply from the statistics plugin within {} ms, browsing the queue for the next {} ms", replyTimeout, pluginRetryDelay);
+    pluginRetryAt = System.currentTimeMillis() + pluginRetryDelay;
+    pluginRetryDelay = Math.min(pluginRetryDelay * 2, MAX_PLUGIN_RETRY_DELAY);
+    closeSession();
+    fromFallback = true;
+    return fallback.getQueueDepth();
+  }
+
+  @Override
+  public boolean isLowerBound() {
+    return fromFallback && fallback.isLowerBound();
+  }
+
+  @Override
+  public void close() {
+    closeSession();
+    fallback.close();
+  }
+
+  private void closeSession() {
+    try {
+      if (session != null) {
+        session.close();
+      }
+    } catch (JMSException e) {
+      log.debug("Error closing statistics session", e);
+    }
+    session = null;
+    producer = null;
+    consumer = null;
+    replyQueue = null;
+  }
+}
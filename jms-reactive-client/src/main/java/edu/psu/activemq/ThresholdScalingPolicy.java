@@ -0,0 +1,36 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * The original scaling behavior: one more processor while the queue is above
+ * the message threshold, one less otherwise.
+ */
+public class ThresholdScalingPolicy implements ScalingPolicy {
+
+  @Override
+  public int targetProcessorCount(ScalingContext context) {
+    int current = context.getCurrentProcessors();
+    if (context.getQueueDepth() > context.getMessageThreshold() || current == 0) {
+      return current < context.getMaxProcessors() ? current + 1 : current;
+    } else if (current > 1) {
+      return current - 1;
+    }
+    return current;
+  }
+}
@@ -0,0 +1,136 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel.  Items go in the bucket of the tick they are due
+ * in, or in a coarser overflow wheel when they are due beyond this wheel's
+ * span, and cascade down as time passes.  Adding and expiring an item are
+ * constant time.  Not thread safe, time only moves when the owner calls
+ * {@link #advance(long, Consumer)}.
+ */
+class TimingWheel<T> {
+
+  private static class Entry<T> {
+    final T item;
+    final long expiry;
+
+    Entry(T item, long expiry) {
+      this.item = item;
+      this.expiry = expiry;
+    }
+  }
+
+  private final long tick;
+  private final List<List<Entry<T>>> buckets;
+  private long currentTime;
+  private TimingWheel<T> overflow;
+  private int pending = 0;
+
+  TimingWheel(long tick, int size, long startTime) {
+    this.tick = tick;
+    this.buckets = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      buckets.add(new ArrayList<>());
+    }
+    this.currentTime = startTime - startTime % tick;
+  }
+
+  /**
+   * @return false if the item is already due, it is not added
+   */
+  boolean add(T item, long expiry) {
+    if (!add(new Entry<>(item, expiry))) {
+      return false;
+    }
+    pending++;
+    return true;
+  }
+
+  private boolean add(Entry<T> entry) {
+    if (entry.expiry < currentTime + tick) {
+      return false;
+    }
+    if (entry.expiry < currentTime + tick * buckets.size()) {
+      buckets.get((int) ((entry.expiry / tick) % buckets.size()))
+             .add(entry);
+      return true;
+    }
+    if (overflow == null) {
+      overflow = new TimingWheel<>(tick * buckets.size(), buckets.size(), currentTime);
+    }
+    return overflow.add(entry);
+  }
+
+  /**
+   * Moves the wheel to <code>now</code>, handing over the items that became
+   * due, up to one tick early.
+   */
+  void advance(long now, Consumer<T> due) {
+    advanceEntries(now, entry -> {
+      pending--;
+      due.accept(entry.item);
+    });
+  }
+
+  private void advanceEntries(long now, Consumer<Entry<T>> due) {
+    while (currentTime + tick <= now) {
+      currentTime += tick;
+      if (overflow != null) {
+        overflow.advanceEntries(currentTime, entry -> {
+          if (!add(entry)) {
+            due.accept(entry);
+          }
+        });
+      }
+      int index = (int) ((currentTime / tick) % buckets.size());
+      List<Entry<T>> expired = buckets.get(index);
+      if (expired.isEmpty()) {
+        continue;
+      }
+      buckets.set(index, new ArrayList<>());
+      for (Entry<T> entry : expired) {
+        if (!add(entry)) {
+          due.accept(entry);
+        }
+      }
+    }
+  }
+
+  /**
+   * Empties the wheel, handing over every item whether due or not.
+   */
+  void clear(Consumer<T> each) {
+    for (List<Entry<T>> bucket : buckets) {
+      bucket.forEach(entry -> each.accept(entry.item));
+      bucket.clear();
+    }
+    if (overflow != null) {
+      overflow.clear(each);
+    }
+    pending = 0;
+  }
+
+  boolean isEmpty() {
+    return pending == 0;
+  }
+}
@@ -0,0 +1,96 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, shared by all the processors calling a rate limited
+ * service.  Rather than counting tokens it keeps the time at which the bucket
+ * would be full again, moved forward one interval per permit, so taking a
+ * permit is a single compare and set.
+ */
+public class TokenBucket {
+
+  private final long interval;
+  private final long tolerance;
+  private final AtomicLong fullAt;
+
+  /**
+   * @param permitsPerSecond sustained rate
+   * @param burst permits that may be taken at once after a quiet period
+   */
+  public TokenBucket(double permitsPerSecond, int burst) {
+    if (permitsPerSecond <= 0 || burst < 1) {
+      throw new IllegalArgumentException("Rate and burst must be positive");
+    }
+    interval = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+    tolerance = interval * (burst - 1);
+    fullAt = new AtomicLong(System.nanoTime());
+  }
+
+  /**
+   * @return 0 if a permit was taken, otherwise the nanoseconds until one
+   *         will be available
+   */
+  public long tryAcquire() {
+    while (true) {
+      long now = System.nanoTime();
+      long current = fullAt.get();
+      long start = current - now > 0 ? current : now;
+      long wait = start - now - tolerance;
+      if (wait > 0) {
+        return wait;
+      }
+      if (fullAt.compareAndSet(current, start + interval)) {
+        return 0;
+      }
+    }
+  }
+
+  public void acquire() throws InterruptedException {
+    long wait;
+    while ((wait = tryAcquire()) > 0) {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }
+
+  /**
+   * @return false if no permit came free within the timeout
+   */
+  public boolean acquire(long timeoutMillis) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    long wait;
+    while ((wait = tryAcquire()) > 0) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.sleep(Math.min(wait, remaining));
+    }
+    return true;
+  }
+
+  /**
+   * Returns a permit that was not used.
+   */
+  public void release() {
+    fullAt.addAndGet(-interval);
+  }
+}
@@ -18,23 +18,32 @@ package edu.psu.activemq;
  */
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collection;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.TextMessage;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.TextNode;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 
+import edu.psu.activemq.exception.BulkheadFullException;
+import edu.psu.activemq.exception.CircuitOpenException;
+import edu.psu.activemq.exception.RateLimitedException;
 import edu.psu.activemq.exception.TypeProcessorException;
 import edu.psu.activemq.exception.UnableToProcessMessageException;
-import lombok.Data;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
@@ -44,14 +53,47 @@ public abstract class TypeDelegatingMessageProcessor extends MessageProcessor {
   public static final String KEY_PROPERTY = "processor_key";
   public static final String DEFAULT_TYPE_PROPERTY = "type";
 
-  private Map<String, MapValue<? extends Object>> mapValueMap = new HashMap<>();
+  // Thread safe, and reuses its buffers and field name tables across parsers
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  // Filled by registerDelegatedMap, unless the handler shares a registry
+  // already filled by another processor
+  private DelegateRegistry delegateRegistry = new DelegateRegistry();
+  private boolean sharedRegistry = false;
 
   protected abstract void registerDelegatedMap();
 
+  /**
+   * Uses a registry shared with other processors, left for its owner to
+   * clean up.
+   */
+  void setDelegateRegistry(DelegateRegistry delegateRegistry) {
+    this.delegateRegistry = delegateRegistry;
+    sharedRegistry = true;
+  }
+
+  /**
+   * @return the delegates, which may be changed while messages are handled
+   */
+  public DelegateRegistry getDelegateRegistry() {
+    return delegateRegistry;
+  }
+
+  void populateDelegates() {
+    delegateRegistry.populate(this::registerDelegatedMap);
+  }
+
   @Override
   protected void initialize() {
     log.info("Initializing TypeDelegatingMessageProcessor...");
-    registerDelegatedMap();
+    populateDelegates();
+    delegateRegistry.configure(transportName, breakerThreshold, breakerCooldown);
+    int bulkheadCapacity = delegateRegistry.getBulkheadCapacity();
+    if (bulkheadCapacity > 0 && asyncWindow == 0 && concurrency == 1) {
+      // Hand bulkheaded types off without waiting for them, so the receiving
+      // thread only blocks on the types that run on it
+      asyncWindow = bulkheadCapacity + 1;
+    }
     
     super.initialize();
   }
@@ -60,51 +102,257 @@ public abstract class TypeDelegatingMessageProcessor extends MessageProcessor {
   public void terminate() {
     log.debug("Terminating TypeDelegatingMessageProcessor");
     super.terminate();
-    mapValueMap.forEach((k,v) -> {
-      log.debug("Calling clean up for Key: {}", k);
-      v.cleanUp.cleanUp();
-    });
-                                                  
+    if (!sharedRegistry) {
+      cleanUpDelegates();
+    }
+  }
+
+  void cleanUpDelegates() {
+    delegateRegistry.cleanUp();
+  }
+
+  Set<String> getRegisteredKeys() {
+    return delegateRegistry.getKeys();
+  }
+
+  /**
+   * @return a selector for the messages whose {@link #KEY_PROPERTY} is the key
+   */
+  public static String keySelector(String key) {
+    return KEY_PROPERTY + " = " + quote(key);
+  }
+
+  /**
+   * @return a selector for the messages whose {@link #KEY_PROPERTY} is
+   *         missing or not one of the keys
+   */
+  public static String unmatchedSelector(Collection<String> keys) {
+    if (keys.isEmpty()) {
+      return null;
+    }
+    return KEY_PROPERTY + " IS NULL OR " + KEY_PROPERTY + " NOT IN (" + keys.stream()
+                                                                          .map(TypeDelegatingMessageProcessor::quote)
+                                                                          .collect(Collectors.joining(", ")) + ")";
+  }
+
+  private static String quote(String key) {
+    return "'" + key.replace("'", "''") + "'";
   }
 
   @Override
-  @SuppressWarnings({ "rawtypes", "unchecked" })
   protected void handleMessage(Message message) throws UnableToProcessMessageException {
+    CompletionStage<Void> stage = delegate(message);
+    if (stage != null) {
+      AsyncMessageProcessor.await(stage);
+    }
+  }
+
+  @Override
+  protected CompletionStage<Void> handleMessageAsync(Message message) {
+    CompletionStage<Void> stage = delegate(message);
+    return stage != null ? stage : CompletableFuture.completedFuture(null);
+  }
+
+  // Handles the message, or starts an asynchronous delegate and returns its stage
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  private CompletionStage<Void> delegate(Message message) throws UnableToProcessMessageException {
     TextMessage tm = (TextMessage) message;
     
     try {
-      String type = extractKey(tm).orElseThrow(()-> new UnableToProcessMessageException("Unable to determine message type"));
-      MapValue mapValue = mapValueMap.get(type);
+      ParsedPayload payload = null;
+      String key = extractTypeFromProperty(tm).orElse(null);
+      if (key == null && delegateRegistry.bindsParsedPayload()) {
+        // Read the text once, for the type and for binding
+        payload = tokenize(tm.getText());
+        key = payload.getType();
+      } else if (key == null) {
+        key = extractTypeFromJson(tm.getText()).orElse(null);
+      }
+      if (key == null) {
+        throw new UnableToProcessMessageException("Unable to determine message type");
+      }
+      String type = key;
+      DelegateRegistry.MapValue mapValue = delegateRegistry.get(type);
       if (mapValue == null) {
         throw new UnableToProcessMessageException("No processor mapped to type: " + type);
       }
-      mapValue.getProcessorConsumer().accept(mapValue.getConvertFunction().apply(tm.getText()));
+      Object value;
+      if (payload != null && mapValue.getBindFunction() != null) {
+        value = mapValue.getBindFunction().apply(payload.getTokens().asParser());
+      } else {
+        value = mapValue.getConvertFunction().apply(tm.getText());
+      }
+      TokenBucket bucket = takeRate(type);
+      CircuitBreaker breaker = mapValue.getCircuitBreaker();
+      if (breaker != null && !breaker.tryAcquire()) {
+        releaseRate(bucket);
+        long remaining = breaker.getRemainingMillis();
+        throw new CircuitOpenException("Circuit open for type: " + type, (int) (remaining > 0 ? remaining : breakerCooldown));
+      }
+      Bulkhead bulkhead = mapValue.getBulkhead();
+      if (bulkhead != null) {
+        CompletableFuture<Void> stage = bulkhead.submit(() -> mapValue.getProcessorConsumer().accept(value));
+        if (stage == null) {
+          if (breaker != null) {
+            breaker.release();
+          }
+          releaseRate(bucket);
+          throw new BulkheadFullException("Bulkhead full for type: " + type, mapValue.getSaturatedRetryWait());
+        }
+        return stage.whenComplete((result, t) -> {
+          selectRetryPolicy(type, unwrap(t));
+          record(breaker, unwrap(t));
+        });
+      }
+      try {
+        if (mapValue.getAsyncProcessor() != null) {
+          CompletionStage<Void> stage = (CompletionStage<Void>) mapValue.getAsyncProcessor().apply(value);
+          return stage.whenComplete((result, t) -> {
+            selectRetryPolicy(type, unwrap(t));
+            record(breaker, unwrap(t));
+          });
+        }
+        mapValue.getProcessorConsumer().accept(value);
+      } catch (RuntimeException e) {
+        selectRetryPolicy(type, e);
+        record(breaker, e);
+        throw e;
+      }
+      record(breaker, null);
+      return null;
     } catch (JMSException | TypeProcessorException e) {
       throw new UnableToProcessMessageException(e.getMessage(), e);
+    } catch (IOException e) {
+      throw new UnableToProcessMessageException("Unable to determine message type", e);
+    }
+  }
+
+  /**
+   * Copies the payload into a token buffer, noting the top level type on the
+   * way, so binding does not have to read the text again.
+   */
+  static ParsedPayload tokenize(String json) throws IOException {
+    try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+      TokenBuffer tokens = new TokenBuffer(parser);
+      String type = null;
+      JsonToken first = parser.nextToken();
+      if (first == JsonToken.START_OBJECT) {
+        tokens.writeStartObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String name = parser.getCurrentName();
+          tokens.copyCurrentStructure(parser);
+          if (type == null && DEFAULT_TYPE_PROPERTY.equals(name) && parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+            type = parser.getText();
+          }
+        }
+        tokens.writeEndObject();
+      } else if (first != null) {
+        tokens.copyCurrentStructure(parser);
+      }
+      return new ParsedPayload(tokens, type);
+    }
+  }
+
+  /**
+   * Takes a permit from the rate limit of the type.  Without one the message
+   * is retried once a permit is due, rather than holding up the receiver and
+   * every other type behind it.
+   */
+  private TokenBucket takeRate(String type) {
+    TokenBucket bucket = typeRateLimiters.get(type);
+    if (bucket == null) {
+      return null;
+    }
+    long wait = bucket.tryAcquire();
+    if (wait > 0) {
+      long waitMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait));
+      throw new RateLimitedException("Rate limit reached for type: " + type, (int) Math.min(waitMillis, Integer.MAX_VALUE));
+    }
+    return bucket;
+  }
+
+  private static void releaseRate(TokenBucket bucket) {
+    if (bucket != null) {
+      bucket.release();
+    }
+  }
+
+  // Retries of the type use its policy, unless the delegate named one
+  private void selectRetryPolicy(String type, Exception failure) {
+    if (failure instanceof UnableToProcessMessageException && ((UnableToProcessMessageException) failure).getRetryPolicy() == null) {
+      ((UnableToProcessMessageException) failure).setRetryPolicy(typeRetryPolicies.get(type));
+    }
+  }
+
+  private static void record(CircuitBreaker breaker, Exception failure) {
+    if (breaker == null) {
+      return;
+    }
+    if (isRetry(failure)) {
+      breaker.recordRetry();
+    } else {
+      breaker.recordSuccess();
     }
   }
  
   protected <T> void register(String key, Function<String,T> function, Consumer<T> consumer) {
-    MapValue<T> mapValue = new MapValue<>();
-    mapValue.setConvertFunction(function);
-    mapValue.setProcessorConsumer(consumer);
-    
-    mapValueMap.put(key, mapValue);
+    delegateRegistry.register(key, function, consumer);
   }
   
   protected <T> void register(String key, TypeProcessor<T> delegate) {
-    MapValue<T> mapValue = new MapValue<>();
-    mapValue.setConvertFunction(delegate::parseMessage);
-    mapValue.setProcessorConsumer(delegate::processMessage);
-    mapValue.setCleanUp(delegate::cleanUp);
-    
-    mapValueMap.put(key, mapValue);
+    delegateRegistry.register(key, delegate);
+  }
+
+  /**
+   * Registers a delegate that handles its type on a {@link Bulkhead} of its
+   * own, sized by the options.  A message arriving while the bulkhead is full
+   * is retried after <code>saturatedRetryWait</code>, without counting as a
+   * failed attempt.  Unless the processor handles messages concurrently, its
+   * <code>asyncWindow</code> is opened so the receiving thread never waits on
+   * the bulkhead.
+   */
+  protected <T> void register(String key, TypeProcessor<T> delegate, TypeOptions options) {
+    delegateRegistry.register(key, delegate, options);
+  }
+
+  /**
+   * Registers a delegate whose messages are bound by the reader, e.g.
+   * <code>mapper.readerFor(Order.class)</code>, instead of its
+   * <code>parseMessage</code>.  When the type is not in the
+   * {@link #KEY_PROPERTY} property the payload is read once, for both the type
+   * and the binding.
+   */
+  protected <T> void register(String key, ObjectReader reader, TypeProcessor<T> delegate) {
+    delegateRegistry.register(key, reader, delegate);
+  }
+  
+  /**
+   * {@link #register(String, ObjectReader, TypeProcessor)} on a bulkhead, see
+   * {@link #register(String, TypeProcessor, TypeOptions)}.
+   */
+  protected <T> void register(String key, ObjectReader reader, TypeProcessor<T> delegate, TypeOptions options) {
+    delegateRegistry.register(key, reader, delegate, options);
+  }
+
+  /**
+   * Registers a delegate that handles its type without blocking.  It only
+   * runs asynchronously when the processor's <code>asyncWindow</code> is set.
+   */
+  protected <T> void registerAsync(String key, AsyncTypeProcessor<T> delegate) {
+    delegateRegistry.registerAsync(key, delegate);
+  }
+
+  /**
+   * The asynchronous form of {@link #register(String, ObjectReader, TypeProcessor)}.
+   */
+  protected <T> void registerAsync(String key, ObjectReader reader, AsyncTypeProcessor<T> delegate) {
+    delegateRegistry.registerAsync(key, reader, delegate);
   }
   
   public static Optional<String> extractKey(TextMessage message) throws JMSException {
     String key = extractTypeFromProperty(message).orElse(null);
     if (key != null) {
-      log.info("Extracted key from Property: {}", key);
+      log.debug("Extracted key from Property: {}", key);
       return Optional.of(key);
     }
     
@@ -115,36 +363,43 @@ public abstract class TypeDelegatingMessageProcessor extends MessageProcessor {
     return Optional.ofNullable(message.getStringProperty(KEY_PROPERTY));
   }
   
+  /**
+   * Reads the top level <code>type</code> field, stopping as soon as it is
+   * found and skipping over nested objects and arrays without building them.
+   */
   public static Optional<String> extractTypeFromJson(String json) {
-    try {
-      ObjectMapper mapper = new ObjectMapper();
-      JsonNode node = mapper.readTree(json);
-      if (node == null) {
-        log.warn("JSON String returned null node");
-        return Optional.empty();
-      }
-      JsonNode typeNode = node.path("type");
-      if (typeNode == null) {
-        log.warn("type node is null");
+    if (json == null) {
+      return Optional.empty();
+    }
+    try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        log.warn("JSON String is not an object");
         return Optional.empty();
       }
-      if (typeNode instanceof TextNode) {
-        log.info("Returning key: {}", typeNode.asText());
-        return Optional.ofNullable(typeNode.asText());
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if (DEFAULT_TYPE_PROPERTY.equals(name)) {
+          if (value == JsonToken.VALUE_STRING) {
+            return Optional.of(parser.getText());
+          }
+          log.warn("type field is not a string");
+          return Optional.empty();
+        }
+        parser.skipChildren();
       }
-      log.warn("TypeNode was not an instance of TextNode");
+      log.warn("JSON String has no type field");
       return Optional.empty();
     } catch (IOException e) {
-      log.warn("Unable to determine to convert JSON String to JsonNode");
+      log.warn("Unable to read the type from the JSON String");
       return Optional.empty();
     }
   }
   
-  @Data
-  private class MapValue<T> {
-    Function<String, T> convertFunction;
-    Consumer<T> processorConsumer;
-    Cleanup cleanUp;
+  @Value
+  static class ParsedPayload {
+    TokenBuffer tokens;
+    String type;
   }
 
 
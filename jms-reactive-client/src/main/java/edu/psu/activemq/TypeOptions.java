@@ -0,0 +1,42 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * How a type registered with a {@link TypeDelegatingMessageProcessor} is
+ * handled.
+ */
+@Value
+@Builder
+public class TypeOptions {
+
+  // Messages of the type handled at once, on threads of the type's own
+  @Builder.Default
+  int maxConcurrent = 1;
+
+  // Messages of the type waiting for a thread, past which the type is full
+  @Builder.Default
+  int maxQueued = 0;
+
+  // Milliseconds before a message turned away by a full type is retried
+  @Builder.Default
+  int saturatedRetryWait = 1000;
+}
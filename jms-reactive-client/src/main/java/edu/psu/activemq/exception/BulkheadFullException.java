@@ -0,0 +1,31 @@
+package edu.psu.activemq.exception;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Retries a message without handling it, because the bulkhead of its type is
+ * full.
+ */
+public class BulkheadFullException extends CircuitOpenException {
+
+  private static final long serialVersionUID = -2739461827046519376L;
+
+  public BulkheadFullException(String why, int retryWait) {
+    super(why, retryWait);
+  }
+}
@@ -61,6 +61,11 @@ public class UnableToProcessMessageException extends RuntimeException {
   @Setter
   boolean forceInitialOffsetDelay = false;
 
+  // Name of a registered RetryPolicy, null leaves it to the processor
+  @Getter
+  @Setter
+  String retryPolicy;
+
   private static final long serialVersionUID = 1497512404523880592L;
 
   public UnableToProcessMessageException(String why) {
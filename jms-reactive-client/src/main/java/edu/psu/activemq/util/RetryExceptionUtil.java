@@ -91,6 +91,27 @@ public class RetryExceptionUtil {
     return utpe;
   }
 
+  /**
+   * @param retryPolicy name of a policy registered with RetryPolicies
+   */
+  public static UnableToProcessMessageException createRetryPolicyException(String message, String retryPolicy) {
+    UnableToProcessMessageException utpe = createRetryBackoffException(message);
+    utpe.setRetryPolicy(retryPolicy);
+    return utpe;
+  }
+
+  public static UnableToProcessMessageException createRetryPolicyException(String message, Exception e, String retryPolicy) {
+    UnableToProcessMessageException utpe = createRetryBackoffException(message, e);
+    utpe.setRetryPolicy(retryPolicy);
+    return utpe;
+  }
+
+  public static UnableToProcessMessageException createRetryPolicyException(String message, Exception e, int retryWait, String retryPolicy) {
+    UnableToProcessMessageException utpe = createRetryBackOffException(message, e, retryWait);
+    utpe.setRetryPolicy(retryPolicy);
+    return utpe;
+  }
+
   public static UnableToProcessMessageException createRetryNonBackoffException(String message) {
     UnableToProcessMessageException utpe = new UnableToProcessMessageException(message);
     utpe.setRetry(RetryExceptionUtil.DEFAULT_RETRY);
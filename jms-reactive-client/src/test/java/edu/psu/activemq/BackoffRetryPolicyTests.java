@@ -0,0 +1,67 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+import edu.psu.activemq.exception.UnableToProcessMessageException;
+import edu.psu.activemq.exception.UnableToProcessMessageException.RetryStyle;
+import edu.psu.activemq.stub.StubMessageProcessor;
+import edu.psu.activemq.util.RetryExceptionUtil;
+
+public class BackoffRetryPolicyTests {
+
+  @Test
+  void capsAndJittersTheExponentialWait() {
+    UnableToProcessMessageException upme = RetryExceptionUtil.createRetryBackoffException("Test Exception", 1000);
+    assertThat(upme.getRetryStyle()).isEqualTo(RetryStyle.EXPONENTIAL);
+
+    BackoffRetryPolicy policy = new BackoffRetryPolicy().setMaxDelay(5000);
+    assertThat(policy.retryWait(3, 0, 0, upme)).isEqualTo(2250);
+    assertThat(policy.retryWait(30, 0, 0, upme)).isEqualTo(5000);
+
+    policy.setJitter(BackoffRetryPolicy.Jitter.FULL);
+    for (int i = 0; i < 100; i++) {
+      assertThat(policy.retryWait(30, 0, 0, upme)).isBetween(0L, 5000L);
+    }
+
+    policy.setJitter(BackoffRetryPolicy.Jitter.DECORRELATED);
+    for (int i = 0; i < 100; i++) {
+      assertThat(policy.retryWait(2, 1200, 0, upme)).isBetween(1000L, 3600L);
+    }
+  }
+
+  @Test
+  void stopsRetryingAtTheDeadline() {
+    UnableToProcessMessageException upme = RetryExceptionUtil.createRetryPolicyException("Test Exception", RetryPolicies.DECORRELATED_JITTER);
+    BackoffRetryPolicy policy = new BackoffRetryPolicy().setDeadline(60000);
+
+    assertThat(policy.retryWait(1, 0, 0, upme)).isEqualTo(60000);
+    assertThat(policy.retryWait(1, 0, 59000, upme)).isEqualTo(1000);
+    assertThat(policy.retryWait(1, 0, 60000, upme)).isNegative();
+
+    MessageProcessor mp = new StubMessageProcessor();
+    mp.setRetryPolicy(policy);
+    assertThat(mp.retryPolicyFor(upme)).isSameAs(RetryPolicies.get(RetryPolicies.DECORRELATED_JITTER));
+    upme.setRetryPolicy(null);
+    assertThat(mp.retryPolicyFor(upme)).isSameAs(policy);
+  }
+}
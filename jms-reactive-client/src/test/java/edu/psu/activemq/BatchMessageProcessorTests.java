@@ -0,0 +1,122 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+
+import org.apache.activemq.ActiveMQMessageConsumer;
+import org.apache.activemq.ActiveMQMessageProducer;
+import org.apache.activemq.command.ActiveMQMessage;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import edu.psu.activemq.exception.UnableToProcessMessageException;
+
+public class BatchMessageProcessorTests {
+
+  List<List<Message>> batches = new ArrayList<>();
+  BatchResult nextResult;
+  UnableToProcessMessageException nextException;
+  BatchMessageProcessor mp;
+
+  @BeforeEach
+  public void setUp() {
+    mp = new BatchMessageProcessor() {
+      @Override
+      protected BatchResult handleBatch(List<Message> messages) throws UnableToProcessMessageException {
+        batches.add(messages);
+        if (nextException != null) {
+          throw nextException;
+        }
+        return nextResult;
+      }
+    };
+    mp.setConsumer(mock(ActiveMQMessageConsumer.class));
+    mp.setProducer(mock(ActiveMQMessageProducer.class));
+    mp.setErrorProducer(mock(MessageProducer.class));
+    mp.setRequestRetryThreshold(3);
+  }
+
+  @Test
+  public void acknowledgesBatchOnceTest() throws JMSException, IOException {
+    nextResult = BatchResult.success();
+
+    mp.processBatch(Arrays.asList(new ActiveMQMessage(), new ActiveMQMessage(), new ActiveMQMessage()));
+
+    Assertions.assertEquals(1, batches.size());
+    Assertions.assertEquals(3, batches.get(0)
+                                      .size());
+    verify(mp.getConsumer(), times(1)).acknowledge();
+    verify(mp.getProducer(), never()).send(any(Message.class));
+    Assertions.assertEquals(3, mp.getStatistics()
+                                 .getCompletedMessages());
+  }
+
+  @Test
+  public void retriesOnlyFailedMessageTest() throws JMSException, IOException {
+    ActiveMQMessage failed = new ActiveMQMessage();
+    UnableToProcessMessageException upme = new UnableToProcessMessageException("Test Exception");
+    upme.setRetry(1000);
+    nextResult = BatchResult.success()
+                            .fail(failed, upme);
+
+    mp.processBatch(Arrays.asList(new ActiveMQMessage(), failed, new ActiveMQMessage()));
+
+    verify(mp.getProducer(), times(1)).send(failed);
+    verify(mp.getErrorProducer(), never()).send(any(Message.class));
+    verify(mp.getConsumer(), times(1)).acknowledge();
+  }
+
+  @Test
+  public void batchExceptionFailsEveryMessageTest() throws JMSException, IOException {
+    nextException = new UnableToProcessMessageException("Test Exception");
+
+    mp.processBatch(Arrays.asList(new ActiveMQMessage(), new ActiveMQMessage()));
+
+    verify(mp.getErrorProducer(), times(2)).send(any(Message.class));
+    verify(mp.getConsumer(), times(1)).acknowledge();
+  }
+
+  @Test
+  public void sendsBackFailedMessageWithoutErrorDestinationTest() throws JMSException, IOException {
+    mp.setErrorProducer(null);
+    ActiveMQMessage failed = new ActiveMQMessage();
+    nextResult = BatchResult.success()
+                            .fail(failed, new RuntimeException("Test Exception"));
+
+    mp.processBatch(Arrays.asList(new ActiveMQMessage(), failed, new ActiveMQMessage()));
+
+    verify(mp.getProducer(), times(1)).send(failed);
+    verify(mp.getConsumer(), never()).rollback();
+    verify(mp.getConsumer(), times(1)).acknowledge();
+  }
+}
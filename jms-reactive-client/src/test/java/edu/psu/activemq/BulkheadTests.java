@@ -0,0 +1,60 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class BulkheadTests {
+
+  @Test
+  void turnsTasksAwayOnceFull() throws Exception {
+    Bulkhead bulkhead = new Bulkhead("orders", 1, 1);
+    CountDownLatch blocked = new CountDownLatch(1);
+
+    CompletableFuture<Void> running = bulkhead.submit(() -> await(blocked));
+    CompletableFuture<Void> queued = bulkhead.submit(() -> {
+    });
+    assertThat(running).isNotNull();
+    assertThat(queued).isNotNull();
+    assertThat(bulkhead.submit(() -> {
+    })).isNull();
+    assertThat(bulkhead.getRejectedCount()).isEqualTo(1);
+
+    blocked.countDown();
+    queued.get(5, TimeUnit.SECONDS);
+    assertThat(running).isDone();
+    assertThat(bulkhead.getCompletedCount()).isEqualTo(2);
+    bulkhead.shutdown();
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread()
+            .interrupt();
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+import edu.psu.activemq.exception.CircuitOpenException;
+import edu.psu.activemq.exception.UnableToProcessMessageException;
+
+public class CircuitBreakerTests {
+
+  @Test
+  void opensAfterRetriesInARowAndProbesOnceAfterTheCooldown() throws InterruptedException {
+    CircuitBreaker breaker = new CircuitBreaker(2, 50);
+
+    breaker.recordRetry();
+    breaker.recordSuccess();
+    breaker.recordRetry();
+    assertThat(breaker.tryAcquire()).isTrue();
+    breaker.recordRetry();
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    assertThat(breaker.tryAcquire()).isFalse();
+
+    Thread.sleep(60);
+    assertThat(breaker.tryAcquire()).isTrue();
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+    assertThat(breaker.tryAcquire()).isFalse();
+
+    breaker.recordSuccess();
+    assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    assertThat(breaker.tryAcquire()).isTrue();
+  }
+
+  @Test
+  void onlyRetriesFromTheHandlerCount() {
+    UnableToProcessMessageException retry = new UnableToProcessMessageException("down");
+    retry.setRetry(1000);
+
+    assertThat(MessageProcessor.isRetry(retry)).isTrue();
+    assertThat(MessageProcessor.isRetry(new UnableToProcessMessageException("bad"))).isFalse();
+    assertThat(MessageProcessor.isRetry(new CircuitOpenException("open", 1000))).isFalse();
+    assertThat(MessageProcessor.isRetry(null)).isFalse();
+  }
+}
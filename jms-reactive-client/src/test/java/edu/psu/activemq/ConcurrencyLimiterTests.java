@@ -0,0 +1,60 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+public class ConcurrencyLimiterTests {
+
+  @Test
+  void limitGrowsWhileSaturatedAndBacksOffWhenSlow() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 10);
+
+    for (int i = 0; i < 10; i++) {
+      assertThat(limiter.tryAcquire()).isTrue();
+      assertThat(limiter.tryAcquire()).isTrue();
+      limiter.release(1000000L, false);
+      limiter.release(1000000L, false);
+      if (limiter.getLimit() > 2) {
+        break;
+      }
+    }
+    assertThat(limiter.getLimit()).isEqualTo(3);
+
+    assertThat(limiter.tryAcquire()).isTrue();
+    limiter.release(100000000L, false);
+    assertThat(limiter.getLimit()).isEqualTo(2);
+    assertThat(limiter.getInFlight()).isZero();
+  }
+
+  @Test
+  void retriesCountAsDropsAndNeverGoBelowTheMinimum() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 10);
+
+    assertThat(limiter.tryAcquire()).isTrue();
+    assertThat(limiter.tryAcquire()).isFalse();
+    limiter.release(1000000L, true);
+
+    assertThat(limiter.getLimit()).isEqualTo(1);
+    assertThat(limiter.getDroppedCount()).isEqualTo(1);
+    assertThat(limiter.getBaselineLatencyMillis()).isZero();
+  }
+}
@@ -0,0 +1,114 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class DelegateRegistryTests {
+
+  @Test
+  void cleansUpReplacedAndRemovedDelegates() {
+    DelegateRegistry registry = new DelegateRegistry();
+    AtomicInteger cleanedUp = new AtomicInteger();
+    TypeProcessor<String> first = delegate(cleanedUp);
+
+    registry.register("orders", first);
+    DelegateRegistry.MapValue<?> before = registry.get("orders");
+    registry.register("orders", delegate(cleanedUp));
+
+    assertThat(cleanedUp).hasValue(1);
+    assertThat(registry.get("orders")).isNotSameAs(before);
+    assertThat(registry.remove("orders")).isTrue();
+    assertThat(registry.remove("orders")).isFalse();
+    assertThat(cleanedUp).hasValue(2);
+    assertThat(registry.getKeys()).isEmpty();
+  }
+
+  @Test
+  void cleansUpAReplacedBulkheadOnceItsWorkFinishes() throws Exception {
+    DelegateRegistry registry = new DelegateRegistry();
+    AtomicInteger cleanedUp = new AtomicInteger();
+    registry.register("orders", delegate(cleanedUp), TypeOptions.builder()
+                                                             .maxConcurrent(1)
+                                                             .build());
+    CountDownLatch blocked = new CountDownLatch(1);
+    CompletableFuture<Void> running = registry.get("orders")
+                                              .getBulkhead()
+                                              .submit(() -> {
+                                                try {
+                                                  blocked.await(5, TimeUnit.SECONDS);
+                                                } catch (InterruptedException e) {
+                                                  Thread.currentThread()
+                                                        .interrupt();
+                                                }
+                                              });
+
+    registry.register("orders", delegate(new AtomicInteger()));
+    assertThat(cleanedUp).hasValue(0);
+
+    blocked.countDown();
+    running.get(5, TimeUnit.SECONDS);
+    long deadline = System.currentTimeMillis() + 5000;
+    while (cleanedUp.get() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(cleanedUp).hasValue(1);
+  }
+
+  @Test
+  void populatesOnceForEveryProcessor() {
+    DelegateRegistry registry = new DelegateRegistry();
+    AtomicInteger registrations = new AtomicInteger();
+
+    for (int i = 0; i < 3; i++) {
+      registry.populate(() -> {
+        registrations.incrementAndGet();
+        registry.register("orders", delegate(new AtomicInteger()));
+      });
+    }
+
+    assertThat(registrations).hasValue(1);
+    assertThat(registry.getKeys()).containsExactly("orders");
+  }
+
+  private static TypeProcessor<String> delegate(AtomicInteger cleanedUp) {
+    return new TypeProcessor<String>() {
+      @Override
+      public String parseMessage(String json) {
+        return json;
+      }
+
+      @Override
+      public void processMessage(String json) {
+      }
+
+      @Override
+      public void cleanUp() {
+        cleanedUp.incrementAndGet();
+      }
+    };
+  }
+}
@@ -55,6 +55,9 @@ public class MessageHandlerTests {
         System.setProperty(MessageHandler.ERROR_TRANSPORT_NAME_PROP_NAME, "");
         System.setProperty(MessageHandler.ERROR_TRANSPORT_TYPE_PROP_NAME, "");
         System.setProperty(MessageHandler.REQUEST_RETRY_THRESHOLD, "");
+        System.setProperty(MessageHandler.QUEUE_DEPTH_PROBE_PROP_NAME, "");
+        System.setProperty(MessageHandler.PROCESSOR_PROFILE_PROP_NAME, "");
+        System.setProperty(MessageHandler.CONSUMPTION_MODE_PROP_NAME, "");
     }
 
     @Test
@@ -102,6 +105,107 @@ public class MessageHandlerTests {
         assertThat(throwable.getMessage()).isEqualTo(MessageHandler.MESSAGE_RETRY_THRESHOLD_MUST_BE_AN_INTEGER);
     }
 
+    @Test
+    void queueDepthProbeDefaultsToStatistics() {
+        messageHandler.parseConfigurationFromProperties();
+
+        assertThat(messageHandler.queueDepthProbeType).isEqualTo(QueueDepthProbe.Type.STATISTICS);
+    }
+
+    @Test
+    void queueDepthProbeIsSetIfProvided() {
+        System.setProperty(MessageHandler.QUEUE_DEPTH_PROBE_PROP_NAME, QueueDepthProbe.Type.BROWSER.name());
+        messageHandler.parseConfigurationFromProperties();
+
+        assertThat(messageHandler.queueDepthProbeType).isEqualTo(QueueDepthProbe.Type.BROWSER);
+    }
+
+    @Test
+    void queueDepthProbeIsStatisticsOrBrowserIfSet() {
+        System.setProperty(MessageHandler.QUEUE_DEPTH_PROBE_PROP_NAME, "NOT_STATISTICS_OR_BROWSER");
+
+        Throwable throwable = assertThrows(IllegalArgumentException.class, () -> messageHandler.parseConfigurationFromProperties());
+
+        assertThat(throwable.getMessage()).isEqualTo(MessageHandler.MESSAGE_STATISTICS_OR_BROWSER_ONLY);
+    }
+
+    @Test
+    void processorProfileIsCpuOrIoIfSet() {
+        System.setProperty(MessageHandler.PROCESSOR_PROFILE_PROP_NAME, "NOT_CPU_OR_IO");
+
+        Throwable throwable = assertThrows(IllegalArgumentException.class, () -> messageHandler.parseConfigurationFromProperties());
+
+        assertThat(throwable.getMessage()).isEqualTo(MessageHandler.MESSAGE_CPU_OR_IO_ONLY);
+    }
+
+    @Test
+    void consumptionModeIsPollOrListenerIfSet() {
+        System.setProperty(MessageHandler.CONSUMPTION_MODE_PROP_NAME, "NOT_POLL_OR_LISTENER");
+
+        Throwable throwable = assertThrows(IllegalArgumentException.class, () -> messageHandler.parseConfigurationFromProperties());
+
+        assertThat(throwable.getMessage()).isEqualTo(MessageHandler.MESSAGE_POLL_OR_LISTENER_ONLY);
+    }
+
+    @Test
+    void exitsIfMinProcessorsExceedsMaxProcessors() {
+        messageHandler.setMinProcessors(4);
+        messageHandler.setMaxProcessors(2);
+
+        Throwable throwable = assertThrows(IllegalArgumentException.class, () -> messageHandler.validateProcessorLimits());
+
+        assertThat(throwable.getMessage()).isEqualTo(MessageHandler.MESSAGE_PROCESSOR_LIMITS);
+    }
+
+    @Test
+    void ioProfileSizesProcessorsFromBlockingTime() {
+        messageHandler.setCores(4);
+        messageHandler.setMaxProcessors(64);
+        messageHandler.setProcessorProfile(ProcessorProfile.IO);
+        // 1 ms of CPU for every 10 ms in the handler
+        messageHandler.getStatistics().recordMessage(10000000L, 1000000L);
+
+        assertThat(messageHandler.currentProcessorLimit()).isEqualTo(40);
+    }
+
+    @Test
+    void ioProfileSharesBlockingTimeBetweenConcurrentMessages() {
+        messageHandler.setCores(4);
+        messageHandler.setMaxProcessors(64);
+        messageHandler.setProcessorProfile(ProcessorProfile.IO);
+        // 4 messages at once, each 1 ms of CPU for every 10 ms in the handler
+        messageHandler.getStatistics().recordMessages(4, 40000000L, 4000000L, 4);
+        // asynchronous handlers do not measure CPU time
+        messageHandler.getStatistics().recordMessage(1000000000L, -1, 4);
+
+        assertThat(messageHandler.currentProcessorLimit()).isEqualTo(10);
+    }
+
+    @Test
+    void adaptivePrefetchBuffersHandlerLatency() {
+        messageHandler.setPrefetchAdaptive(true);
+        messageHandler.setPrefetchBuffer(1000);
+        assertThat(messageHandler.nextPrefetch()).isEqualTo(MessageHandler.DEFAULT_PREFETCH);
+
+        // 20 ms per message
+        messageHandler.getStatistics().recordMessages(5, 100000000L, -1);
+        assertThat(messageHandler.nextPrefetch()).isEqualTo(50);
+
+        // slower than the buffer time
+        messageHandler.getStatistics().recordMessages(1, 10000000000L, -1);
+        assertThat(messageHandler.nextPrefetch()).isEqualTo(1);
+    }
+
+    @Test
+    void typeRateLimitsAreKeyRatePairs() {
+        assertThat(MessageHandler.parseTypeRateLimits("orders=10, invoices=2.5")).containsEntry("orders", 10.0)
+                                                                               .containsEntry("invoices", 2.5);
+
+        Throwable throwable = assertThrows(IllegalArgumentException.class, () -> MessageHandler.parseTypeRateLimits("orders:10"));
+
+        assertThat(throwable.getMessage()).isEqualTo(MessageHandler.MESSAGE_RATE_TYPE_LIMITS);
+    }
+
     @Test
     void exitsIfRequiredBrokerUrlParameterIsMissing() {
         System.setProperty(MessageHandler.TRANSPORT_NAME_PROP_NAME, "transport.name");
@@ -18,14 +18,25 @@ package edu.psu.activemq;
  */
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
 
+import org.apache.activemq.ActiveMQMessageConsumer;
+import org.apache.activemq.ActiveMQMessageProducer;
 import org.apache.activemq.ScheduledMessage;
+import org.apache.activemq.command.ActiveMQBytesMessage;
 import org.apache.activemq.command.ActiveMQMessage;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
 
 import edu.psu.activemq.exception.UnableToProcessMessageException;
 import edu.psu.activemq.exception.UnableToProcessMessageException.RetryStyle;
@@ -163,4 +174,193 @@ public class MessageProcessorTests {
     Assertions.assertEquals("4", actualMessage.getStringProperty(StubMessageProcessor.DELIVERY_COUNT_PROP_NAME));
   }
 
+  @Test
+  public void transactedCommitsEveryCommitSizeTest() throws JMSException {
+    MessageProcessor mp = new StubMessageProcessor();
+    mp.setTransacted(true);
+    mp.setCommitSize(3);
+    mp.setCommitInterval(Long.MAX_VALUE);
+    mp.session = Mockito.mock(Session.class);
+    mp.lastCommit = System.currentTimeMillis();
+
+    mp.acknowledge(1);
+    mp.acknowledge(1);
+    Mockito.verify(mp.session, Mockito.never()).commit();
+
+    mp.acknowledge(1);
+    Mockito.verify(mp.session, Mockito.times(1)).commit();
+
+    mp.acknowledge(1);
+    mp.commitPending();
+    Mockito.verify(mp.session, Mockito.times(2)).commit();
+  }
+
+  @Test
+  public void failedCommitRollsBackAndStopsTest() throws JMSException {
+    MessageProcessor mp = new StubMessageProcessor();
+    mp.setTransacted(true);
+    mp.setCommitSize(1);
+    mp.session = Mockito.mock(Session.class);
+    Mockito.doThrow(new JMSException("Test Exception"))
+           .when(mp.session)
+           .commit();
+
+    mp.acknowledge(1);
+
+    Mockito.verify(mp.session).rollback();
+    Assertions.assertTrue(mp.isStopped());
+  }
+
+  @Test
+  public void transactedFailureKeepsTheHandledMessagesTest() throws JMSException, IOException {
+    MessageProcessor mp = new StubMessageProcessor();
+    mp.setTransacted(true);
+    mp.setCommitSize(3);
+    mp.setCommitInterval(Long.MAX_VALUE);
+    mp.session = Mockito.mock(Session.class);
+    mp.setProducer(Mockito.mock(ActiveMQMessageProducer.class));
+    mp.lastCommit = System.currentTimeMillis();
+
+    mp.settle(new ActiveMQMessage(), null);
+    ActiveMQMessage failed = new ActiveMQMessage();
+    mp.settle(failed, new RuntimeException("Test Exception"));
+    mp.settle(new ActiveMQMessage(), null);
+
+    // the failed message goes back to the queue in the same transaction
+    Mockito.verify(mp.getProducer()).send(failed);
+    Mockito.verify(mp.session, Mockito.never()).rollback();
+    Mockito.verify(mp.session, Mockito.times(1)).commit();
+    Assertions.assertEquals(1, failed.getIntProperty(StubMessageProcessor.REDELIVERY_COUNT_PROP_NAME));
+  }
+
+  @Test
+  public void transactedFailureIsDeadLetteredAfterItsRedeliveriesTest() throws JMSException, IOException {
+    MessageProcessor mp = new StubMessageProcessor();
+    mp.setTransacted(true);
+    mp.session = Mockito.mock(Session.class);
+    mp.setProducer(Mockito.mock(ActiveMQMessageProducer.class));
+    Queue deadLetterQueue = Mockito.mock(Queue.class);
+    MessageProducer deadLetterProducer = Mockito.mock(MessageProducer.class);
+    Mockito.when(mp.session.createQueue("ActiveMQ.DLQ"))
+           .thenReturn(deadLetterQueue);
+    Mockito.when(mp.session.createProducer(deadLetterQueue))
+           .thenReturn(deadLetterProducer);
+
+    ActiveMQMessage failed = new ActiveMQMessage();
+    failed.setIntProperty(StubMessageProcessor.REDELIVERY_COUNT_PROP_NAME, MessageProcessor.MAX_REDELIVERIES);
+    mp.settle(failed, new RuntimeException("Test Exception"));
+
+    Mockito.verify(deadLetterProducer).send(failed);
+    Mockito.verify(mp.getProducer(), Mockito.never()).send(failed);
+    Assertions.assertEquals("Test Exception", failed.getStringProperty("error"));
+  }
+
+  @Test
+  public void drainCompletesWithoutReceiverTest() {
+    StubMessageProcessor mp = new StubMessageProcessor();
+
+    Assertions.assertTrue(mp.drain()
+                            .isDone());
+    Assertions.assertTrue(mp.drain()
+                            .isDone());
+  }
+
+  @Test
+  public void drainDoesNotWaitForTheDispatchTest() throws Exception {
+    MessageProcessor mp = new StubMessageProcessor();
+    mp.setConsumptionMode(ConsumptionMode.LISTENER);
+
+    CompletableFuture<Void> drained;
+    synchronized (mp.dispatchLock) {
+      drained = mp.drain();
+      Assertions.assertFalse(drained.isDone());
+    }
+    drained.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void drainWakesTheReceiverTest() throws Exception {
+    MessageProcessor mp = new StubMessageProcessor();
+    ActiveMQMessageConsumer consumer = Mockito.mock(ActiveMQMessageConsumer.class);
+    Mockito.when(consumer.receive(Mockito.anyLong()))
+           .thenAnswer(invocation -> {
+             try {
+               Thread.sleep(invocation.getArgument(0));
+               return null;
+             } catch (InterruptedException e) {
+               Thread.currentThread()
+                     .interrupt();
+               throw new JMSException("Interrupted");
+             }
+           });
+    mp.setConsumer(consumer);
+
+    CompletableFuture<Message> received = new CompletableFuture<>();
+    mp.receiver = new Thread(() -> {
+      try {
+        received.complete(mp.receive(60000));
+      } catch (JMSException e) {
+        received.completeExceptionally(e);
+      }
+    });
+    mp.receiver.start();
+    while (mp.receiverState.get() != MessageProcessor.WAITING) {
+      Thread.yield();
+    }
+
+    mp.drain();
+    Assertions.assertNull(received.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void localRetryRereadsTheBodyTest() throws JMSException {
+    MessageProcessor mp = new StubMessageProcessor();
+    mp.setLocalRetryThreshold(1000);
+    mp.localRetries = new TimingWheel<>(MessageProcessor.LOCAL_RETRY_TICK, 64, MessageProcessor.nowMillis());
+
+    ActiveMQBytesMessage message = new ActiveMQBytesMessage();
+    message.setLongProperty(StubMessageProcessor.RETRY_WAIT_PROP_NAME, 0);
+    message.writeBytes(new byte[] { 1, 2 });
+    message.reset();
+    message.readByte();
+
+    Assertions.assertTrue(mp.retryLocally(message));
+    Assertions.assertEquals(1, message.readByte());
+  }
+
+  @Test
+  public void concurrentSettleAcknowledgesIndividuallyTest() throws JMSException, IOException {
+    MessageProcessor mp = new StubMessageProcessor();
+    mp.setConcurrency(8);
+    mp.setConsumer(Mockito.mock(ActiveMQMessageConsumer.class));
+    mp.setProducer(Mockito.mock(ActiveMQMessageProducer.class));
+
+    Message handled = Mockito.mock(Message.class);
+    mp.settle(handled, null);
+    Mockito.verify(handled).acknowledge();
+
+    // no error destination, a rollback would return the other messages in flight
+    ActiveMQMessage failed = Mockito.spy(new ActiveMQMessage());
+    mp.settle(failed, new RuntimeException("Test Exception"));
+    Mockito.verify(mp.getProducer()).send(failed);
+    Mockito.verify(failed).acknowledge();
+    Mockito.verify(mp.getConsumer(), Mockito.never()).rollback();
+    Mockito.verify(mp.getConsumer(), Mockito.never()).acknowledge();
+  }
+
+  @Test
+  public void orderingKeyPinsMessagesToLaneTest() throws JMSException {
+    MessageProcessor mp = new StubMessageProcessor();
+    mp.setOrderingKey(OrderingKey.PROCESSOR_KEY);
+    mp.lanes = new Executor[4];
+
+    ActiveMQMessage first = new ActiveMQMessage();
+    first.setStringProperty(TypeDelegatingMessageProcessor.KEY_PROPERTY, "entity-1");
+    ActiveMQMessage second = new ActiveMQMessage();
+    second.setStringProperty(TypeDelegatingMessageProcessor.KEY_PROPERTY, "entity-1");
+
+    Assertions.assertEquals(mp.laneOf(first), mp.laneOf(second));
+    Assertions.assertNotEquals(mp.laneOf(new ActiveMQMessage()), mp.laneOf(new ActiveMQMessage()));
+  }
+
 }
@@ -0,0 +1,77 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.Message;
+
+import org.apache.activemq.command.ActiveMQMessage;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+public class MessagePublisherTests {
+
+  @Test
+  public void deliverySettlesOnceTest() {
+    MessagePublisher<Message> publisher = MessagePublisher.ofMessages();
+    Delivery<Message> delivery = new Delivery<>(new ActiveMQMessage(), null, publisher);
+
+    delivery.ack();
+
+    assertThrows(IllegalStateException.class, () -> delivery.fail(new RuntimeException("Test Exception")));
+    assertThat(publisher.outcomes).hasSize(1);
+  }
+
+  @Test
+  public void rejectsSecondSubscriberTest() {
+    MessagePublisher<Message> publisher = MessagePublisher.ofMessages();
+    List<Throwable> errors = new ArrayList<>();
+    Subscriber<Delivery<Message>> subscriber = new Subscriber<Delivery<Message>>() {
+      @Override
+      public void onSubscribe(Subscription s) {
+        // cancelling before any demand keeps the first subscription offline
+        s.cancel();
+      }
+
+      @Override
+      public void onNext(Delivery<Message> t) {
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        errors.add(t);
+      }
+
+      @Override
+      public void onComplete() {
+      }
+    };
+
+    publisher.subscribe(subscriber);
+    publisher.subscribe(subscriber);
+
+    assertThat(errors).hasSize(1);
+    assertThat(errors.get(0)).isInstanceOf(IllegalStateException.class);
+  }
+}
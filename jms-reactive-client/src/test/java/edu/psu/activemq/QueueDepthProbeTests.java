@@ -0,0 +1,129 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.Session;
+
+import org.apache.activemq.advisory.AdvisorySupport;
+import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class QueueDepthProbeTests {
+
+  @Test
+  void browsesFromTheHeadOfTheQueueEveryTime() throws JMSException {
+    Connection connection = Mockito.mock(Connection.class);
+    Session session = Mockito.mock(Session.class);
+    Mockito.when(connection.createSession(false, Session.AUTO_ACKNOWLEDGE))
+           .thenReturn(session);
+    Mockito.when(session.createBrowser(Mockito.any(), Mockito.any()))
+           .thenAnswer(invocation -> browserOf(4));
+
+    BrowserQueueDepthProbe probe = new BrowserQueueDepthProbe(connection, "test.queue", 3);
+
+    assertThat(probe.getQueueDepth()).isEqualTo(3);
+    assertThat(probe.getQueueDepth()).isEqualTo(3);
+    assertThat(probe.isLowerBound()).isTrue();
+    probe.close();
+  }
+
+  @Test
+  void consumedAdvisoriesDoNotLowerACappedDepth() {
+    AdvisoryDepthMonitor monitor = new AdvisoryDepthMonitor(Mockito.mock(Connection.class), "test.queue");
+    ActiveMQMessage delivered = new ActiveMQMessage();
+    delivered.setDestination(AdvisorySupport.getMessageDeliveredAdvisoryTopic(new ActiveMQQueue("test.queue")));
+    ActiveMQMessage consumed = new ActiveMQMessage();
+    consumed.setDestination(AdvisorySupport.getMessageConsumedAdvisoryTopic(new ActiveMQQueue("test.queue")));
+
+    monitor.reconcile(3, true);
+    monitor.onMessage(delivered);
+    monitor.onMessage(consumed);
+    monitor.onMessage(consumed);
+    assertThat(monitor.getEstimate()).isEqualTo(3);
+
+    monitor.reconcile(3, false);
+    monitor.onMessage(consumed);
+    assertThat(monitor.getEstimate()).isEqualTo(2);
+  }
+
+  @Test
+  void asksThePluginAgainAfterAMiss() throws JMSException {
+    Connection connection = Mockito.mock(Connection.class);
+    Session session = Mockito.mock(Session.class, Mockito.RETURNS_MOCKS);
+    MessageConsumer consumer = Mockito.mock(MessageConsumer.class);
+    Mockito.when(connection.createSession(false, Session.AUTO_ACKNOWLEDGE))
+           .thenReturn(session);
+    Mockito.when(session.createConsumer(Mockito.any()))
+           .thenReturn(consumer);
+    AtomicReference<String> correlationId = new AtomicReference<>();
+    Message request = Mockito.mock(Message.class);
+    Mockito.doAnswer(invocation -> {
+      correlationId.set(invocation.getArgument(0));
+      return null;
+    })
+           .when(request)
+           .setJMSCorrelationID(Mockito.anyString());
+    Mockito.when(session.createMessage())
+           .thenReturn(request);
+    MapMessage reply = Mockito.mock(MapMessage.class);
+    Mockito.when(reply.getJMSCorrelationID())
+           .thenAnswer(invocation -> correlationId.get());
+    Mockito.when(reply.getLong(StatisticsQueueDepthProbe.SIZE_KEY))
+           .thenReturn(42L);
+    AtomicBoolean answering = new AtomicBoolean();
+    Mockito.when(consumer.receive(Mockito.anyLong()))
+           .thenAnswer(invocation -> answering.get() ? reply : null);
+    QueueDepthProbe fallback = Mockito.mock(QueueDepthProbe.class);
+    Mockito.when(fallback.getQueueDepth())
+           .thenReturn(7L);
+
+    StatisticsQueueDepthProbe probe = new StatisticsQueueDepthProbe(connection, "test.queue", 10, fallback);
+    probe.pluginRetryDelay = 0;
+
+    assertThat(probe.getQueueDepth()).isEqualTo(7);
+    answering.set(true);
+    assertThat(probe.getQueueDepth()).isEqualTo(42);
+  }
+
+  // Like the ActiveMQ browser, every call hands back the same enumeration
+  private static QueueBrowser browserOf(int depth) throws JMSException {
+    Enumeration<Object> messages = Collections.enumeration(Arrays.asList(new Object[depth]));
+    QueueBrowser browser = Mockito.mock(QueueBrowser.class);
+    Mockito.when(browser.getEnumeration())
+           .thenReturn(messages);
+    return browser;
+  }
+}
@@ -0,0 +1,42 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+public class RetryTiersTests {
+
+  @Test
+  void choosesTheLongestTierNoLongerThanTheWait() {
+    RetryTiers tiers = new RetryTiers(600000, 5000, 60000);
+
+    assertThat(tiers.tierFor(0)).isZero();
+    assertThat(tiers.tierFor(200)).isZero();
+    assertThat(tiers.tierFor(3000)).isEqualTo(5000);
+    assertThat(tiers.tierFor(59999)).isEqualTo(5000);
+    assertThat(tiers.tierFor(90000)).isEqualTo(60000);
+    assertThat(tiers.tierFor(3600000)).isEqualTo(600000);
+
+    assertThat(tiers.queueName("orders", 5000)).isEqualTo("orders.retry.5s");
+    assertThat(tiers.queueName("orders", 600000)).isEqualTo("orders.retry.10m");
+    assertThat(tiers.queueName("orders", 250)).isEqualTo("orders.retry.250ms");
+  }
+}
@@ -0,0 +1,102 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+public class ScalingPolicyTests {
+
+  private static final long SECOND_IN_NANOS = 1000000000L;
+
+  @Test
+  void thresholdPolicyAddsOneProcessorAboveThreshold() {
+    ThresholdScalingPolicy policy = new ThresholdScalingPolicy();
+
+    assertThat(policy.targetProcessorCount(context(0, 50, 2, 0, 0))).isEqualTo(3);
+  }
+
+  @Test
+  void thresholdPolicyRemovesOneProcessorBelowThreshold() {
+    ThresholdScalingPolicy policy = new ThresholdScalingPolicy();
+
+    assertThat(policy.targetProcessorCount(context(0, 5, 3, 0, 0))).isEqualTo(2);
+  }
+
+  @Test
+  void thresholdPolicyKeepsOneProcessor() {
+    ThresholdScalingPolicy policy = new ThresholdScalingPolicy();
+
+    assertThat(policy.targetProcessorCount(context(0, 0, 0, 0, 0))).isEqualTo(1);
+    assertThat(policy.targetProcessorCount(context(0, 0, 1, 0, 0))).isEqualTo(1);
+  }
+
+  @Test
+  void thresholdPolicyStopsAtMaxProcessors() {
+    ThresholdScalingPolicy policy = new ThresholdScalingPolicy();
+
+    assertThat(policy.targetProcessorCount(context(0, 500, 8, 0, 0))).isEqualTo(8);
+  }
+
+  @Test
+  void ratePolicyScalesOutSeveralProcessorsInOneStep() {
+    RateBasedScalingPolicy policy = new RateBasedScalingPolicy();
+
+    policy.targetProcessorCount(context(0, 0, 1, 0, 0));
+    // 10 messages a second per processor, 100 arriving a second
+    int target = policy.targetProcessorCount(context(1000, 90, 1, 10, SECOND_IN_NANOS));
+
+    assertThat(target).isEqualTo(8);
+  }
+
+  @Test
+  void ratePolicyDoesNotScaleInWithoutHeadroom() {
+    RateBasedScalingPolicy policy = new RateBasedScalingPolicy();
+    policy.setScaleInCooldown(0);
+
+    policy.targetProcessorCount(context(0, 0, 4, 0, 0));
+    // 4 processors at 10 messages a second each, 35 arriving a second
+    int target = policy.targetProcessorCount(context(1000, 0, 4, 35, 35 * SECOND_IN_NANOS / 10));
+
+    assertThat(target).isEqualTo(4);
+  }
+
+  @Test
+  void ratePolicyScalesInAfterCooldown() {
+    RateBasedScalingPolicy policy = new RateBasedScalingPolicy();
+    policy.setScaleInCooldown(5000);
+
+    policy.targetProcessorCount(context(0, 0, 4, 0, 0));
+    // 4 processors at 10 messages a second each, 5 arriving a second
+    assertThat(policy.targetProcessorCount(context(1000, 0, 4, 5, SECOND_IN_NANOS / 2))).isEqualTo(4);
+    assertThat(policy.targetProcessorCount(context(6000, 0, 4, 30, 3 * SECOND_IN_NANOS))).isEqualTo(3);
+  }
+
+  private static ScalingContext context(long timestamp, long depth, int processors, long completed, long busyNanos) {
+    return ScalingContext.builder()
+                         .timestamp(timestamp)
+                         .queueDepth(depth)
+                         .currentProcessors(processors)
+                         .maxProcessors(8)
+                         .messageThreshold(10)
+                         .completedMessages(completed)
+                         .busyNanos(busyNanos)
+                         .build();
+  }
+}
@@ -0,0 +1,67 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class TimingWheelTests {
+
+  @Test
+  void itemsComeDueInOrderAcrossTheOverflowWheel() {
+    TimingWheel<String> wheel = new TimingWheel<>(10, 8, 1000);
+    List<String> due = new ArrayList<>();
+
+    assertThat(wheel.add("now", 1005)).isFalse();
+    assertThat(wheel.add("soon", 1050)).isTrue();
+    assertThat(wheel.add("later", 1500)).isTrue();
+    assertThat(wheel.add("much later", 9000)).isTrue();
+
+    wheel.advance(1049, due::add);
+    assertThat(due).isEmpty();
+    wheel.advance(1050, due::add);
+    assertThat(due).containsExactly("soon");
+    wheel.advance(1499, due::add);
+    assertThat(due).containsExactly("soon");
+    wheel.advance(1500, due::add);
+    assertThat(due).containsExactly("soon", "later");
+    assertThat(wheel.isEmpty()).isFalse();
+
+    wheel.advance(9000, due::add);
+    assertThat(due).containsExactly("soon", "later", "much later");
+    assertThat(wheel.isEmpty()).isTrue();
+  }
+
+  @Test
+  void clearHandsOverItemsNotYetDue() {
+    TimingWheel<String> wheel = new TimingWheel<>(10, 8, 0);
+    List<String> left = new ArrayList<>();
+    wheel.add("a", 50);
+    wheel.add("b", 5000);
+
+    wheel.clear(left::add);
+
+    assertThat(left).containsExactlyInAnyOrder("a", "b");
+    assertThat(wheel.isEmpty()).isTrue();
+  }
+}
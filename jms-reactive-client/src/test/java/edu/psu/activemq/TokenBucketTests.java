@@ -0,0 +1,39 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+public class TokenBucketTests {
+
+  @Test
+  void allowsTheBurstThenWaitsForTheRate() {
+    TokenBucket bucket = new TokenBucket(1, 3);
+
+    assertThat(bucket.tryAcquire()).isZero();
+    assertThat(bucket.tryAcquire()).isZero();
+    assertThat(bucket.tryAcquire()).isZero();
+    assertThat(bucket.tryAcquire()).isGreaterThan(900000000L);
+
+    bucket.release();
+    assertThat(bucket.tryAcquire()).isZero();
+  }
+}
@@ -1,8 +1,17 @@
 package edu.psu.activemq;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import javax.jms.TextMessage;
 
 import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.selector.SelectorParser;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -11,6 +20,8 @@ import org.mockito.Mockito;
 import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import edu.psu.activemq.exception.BulkheadFullException;
+import edu.psu.activemq.exception.RateLimitedException;
 import edu.psu.activemq.exception.TypeProcessorException;
 import edu.psu.activemq.exception.UnableToProcessMessageException;
 import edu.psu.activemq.stub.AlternateDelegate;
@@ -95,6 +106,100 @@ public class TypeDelegateMesageProcessorTest {
     Assertions.assertEquals(error, ex.getMessage());
   }
 
+  @Test
+  public void testAsyncDelegateCompletesStage() throws Exception {
+    CompletableFuture<Void> pending = new CompletableFuture<>();
+    TypeDelegatingMessageProcessor asyncProcessor = new TypeDelegatingMessageProcessor() {
+      @Override
+      protected void registerDelegatedMap() {
+        registerAsync(TestMessage.TYPE, new AsyncTypeProcessor<String>() {
+          @Override
+          public String parseMessage(String json) {
+            return json;
+          }
+
+          @Override
+          public CompletionStage<Void> processMessage(String json) {
+            return pending;
+          }
+        });
+      }
+    };
+    asyncProcessor.registerDelegatedMap();
+
+    CompletionStage<Void> stage = asyncProcessor.handleMessageAsync(createDefaultMessage());
+    Assertions.assertFalse(stage.toCompletableFuture().isDone());
+
+    pending.completeExceptionally(new UnableToProcessMessageException("Forcing Error"));
+    Assertions.assertThrows(UnableToProcessMessageException.class, () -> asyncProcessor.handleMessage(createDefaultMessage()));
+  }
+
+  @Test
+  public void testReaderDelegateBindsFromTheSingleParse() throws Exception {
+    TypeDelegatingMessageProcessor readerProcessor = new TypeDelegatingMessageProcessor() {
+      @Override
+      protected void registerDelegatedMap() {
+        register(TestMessage.TYPE, TestMessage.createJsonMapper().readerFor(TestMessage.class), delegate);
+      }
+    };
+    readerProcessor.registerDelegatedMap();
+
+    TextMessage msg = new ActiveMQTextMessage();
+    msg.setText("{\"user\":\"" + TestMessage.USER + "\",\"type\":\"" + TestMessage.TYPE + "\"}");
+    readerProcessor.handleMessage(msg);
+
+    Mockito.verify(delegate, Mockito.never()).parseMessage(Mockito.anyString());
+    Mockito.verify(delegate).processMessage(TestMessage.defaultMessage());
+  }
+
+  @Test
+  public void testFullBulkheadRetriesTheMessage() throws Exception {
+    CountDownLatch blocked = new CountDownLatch(1);
+    TypeDelegatingMessageProcessor bulkheadProcessor = new TypeDelegatingMessageProcessor() {
+      @Override
+      protected void registerDelegatedMap() {
+        register(TestMessage.TYPE, new TypeProcessor<String>() {
+          @Override
+          public String parseMessage(String json) {
+            return json;
+          }
+
+          @Override
+          public void processMessage(String json) {
+            try {
+              blocked.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        }, TypeOptions.builder().maxConcurrent(1).saturatedRetryWait(250).build());
+      }
+    };
+    bulkheadProcessor.registerDelegatedMap();
+
+    CompletionStage<Void> running = bulkheadProcessor.handleMessageAsync(createDefaultMessage());
+    Assertions.assertFalse(running.toCompletableFuture().isDone());
+    BulkheadFullException full = Assertions.assertThrows(BulkheadFullException.class, () -> bulkheadProcessor.handleMessageAsync(createDefaultMessage()));
+    Assertions.assertEquals(250, full.getRetryWait());
+
+    blocked.countDown();
+    running.toCompletableFuture().get(5, TimeUnit.SECONDS);
+    bulkheadProcessor.cleanUpDelegates();
+  }
+
+  @Test
+  public void testRateLimitedTypeRetriesWithoutHoldingOtherTypes() throws Exception {
+    processor.setTypeRateLimiters(Collections.singletonMap(TestMessage.TYPE, new TokenBucket(0.01, 1)));
+
+    processor.handleMessage(createDefaultMessage());
+    RateLimitedException limited = Assertions.assertThrows(RateLimitedException.class, () -> processor.handleMessage(createDefaultMessage()));
+    Assertions.assertTrue(limited.getRetryWait() > 0);
+    processor.handleMessage(createAlternateMessage());
+
+    Assertions.assertEquals(1, delegate.getMessageCount());
+    Assertions.assertEquals(1, altDelegate.getMessageCount());
+  }
+
   @Test
   public void testExtractTypeFromJson() {
     String json = TestMessage.defaultJson();
@@ -103,6 +208,23 @@ public class TypeDelegateMesageProcessorTest {
     Assertions.assertEquals(TestMessage.TYPE, type);
   }
 
+  @Test
+  public void testExtractTypeFromJsonSkipsNestedTypes() {
+    String json = "{\"data\":{\"type\":\"nested\",\"list\":[{\"type\":\"deeper\"}]},\"type\":\"outer\"}";
+    Assertions.assertEquals(Optional.of("outer"), TypeDelegatingMessageProcessor.extractTypeFromJson(json));
+    Assertions.assertEquals(Optional.empty(), TypeDelegatingMessageProcessor.extractTypeFromJson("{\"type\":{\"name\":\"x\"}}"));
+    Assertions.assertEquals(Optional.empty(), TypeDelegatingMessageProcessor.extractTypeFromJson("not json"));
+  }
+
+  @Test
+  public void testKeySelectorsPartitionTheKeys() throws Exception {
+    Assertions.assertEquals("processor_key = 'it''s'", TypeDelegatingMessageProcessor.keySelector("it's"));
+    String unmatched = TypeDelegatingMessageProcessor.unmatchedSelector(Arrays.asList("a", "b"));
+    Assertions.assertEquals("processor_key IS NULL OR processor_key NOT IN ('a', 'b')", unmatched);
+    Assertions.assertNull(TypeDelegatingMessageProcessor.unmatchedSelector(Collections.emptyList()));
+    SelectorParser.parse(unmatched);
+  }
+
   @Test
   public void testextractTypeFromProperty() throws Exception {
     TextMessage msg = createDefaultMessage();
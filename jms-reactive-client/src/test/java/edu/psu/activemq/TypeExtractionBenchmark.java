@@ -0,0 +1,118 @@
+package edu.psu.activemq;
+
+/*
+ * Copyright (c) 2018 by The Pennsylvania State University
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+/**
+ * Compares the streaming type extraction with the tree based one it replaced,
+ * and extracting then binding with binding from a single parse, on a payload
+ * whose type follows a few KB of nested data.  Not run by the build, run the
+ * main method to compare.
+ */
+public class TypeExtractionBenchmark {
+
+  private static final int WARMUP = 20000;
+  private static final int ITERATIONS = 100000;
+
+  public static void main(String[] args) {
+    String json = payload();
+
+    run("warm up tree", WARMUP, () -> treeExtraction(json));
+    run("warm up streaming", WARMUP, () -> TypeDelegatingMessageProcessor.extractTypeFromJson(json));
+
+    run("tree", ITERATIONS, () -> treeExtraction(json));
+    run("streaming", ITERATIONS, () -> TypeDelegatingMessageProcessor.extractTypeFromJson(json));
+
+    ObjectReader reader = new ObjectMapper().readerFor(Map.class);
+    run("warm up bind", WARMUP, () -> extractThenBind(reader, json));
+    run("warm up parse once", WARMUP, () -> parseOnce(reader, json));
+
+    run("extract then bind", ITERATIONS, () -> extractThenBind(reader, json));
+    run("parse once", ITERATIONS, () -> parseOnce(reader, json));
+  }
+
+  private static void extractThenBind(ObjectReader reader, String json) {
+    try {
+      TypeDelegatingMessageProcessor.extractTypeFromJson(json);
+      reader.readValue(json);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void parseOnce(ObjectReader reader, String json) {
+    try {
+      reader.readValue(TypeDelegatingMessageProcessor.tokenize(json)
+                                                     .getTokens()
+                                                     .asParser());
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void run(String name, int iterations, Runnable extraction) {
+    long started = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      extraction.run();
+    }
+    long elapsed = System.nanoTime() - started;
+    System.out.printf("%-18s %8.2f us/op%n", name, elapsed / 1000.0 / iterations);
+  }
+
+  // The implementation before streaming, a new mapper and a full tree per call
+  static Optional<String> treeExtraction(String json) {
+    try {
+      ObjectMapper mapper = new ObjectMapper();
+      JsonNode node = mapper.readTree(json);
+      if (node == null) {
+        return Optional.empty();
+      }
+      JsonNode typeNode = node.path("type");
+      if (typeNode instanceof TextNode) {
+        return Optional.ofNullable(typeNode.asText());
+      }
+      return Optional.empty();
+    } catch (IOException e) {
+      return Optional.empty();
+    }
+  }
+
+  static String payload() {
+    StringBuilder json = new StringBuilder("{\"id\":\"12345\",\"items\":[");
+    for (int i = 0; i < 50; i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append("{\"sku\":\"SKU-")
+          .append(i)
+          .append("\",\"quantity\":")
+          .append(i)
+          .append(",\"tags\":[\"a\",\"b\",\"c\"],\"price\":{\"amount\":19.99,\"currency\":\"USD\"}}");
+    }
+    return json.append("],\"type\":\"order\"}")
+               .toString();
+  }
+}